@@ -0,0 +1,94 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * CodecBench compares wireCodec against the Java serialization of
+ * messageWrapper that was used before it. For a range of image sizes it
+ * reports bytes on the wire and average encode and decode time per message
+ * for a PREPARE (with image) and a decision (without image).
+ *
+ * Build with make, then run: java -cp .:../working:../lib CodecBench [iters]
+ */
+public class CodecBench {
+    //layout of messageWrapper before wireCodec, image nested in a Message
+    static class legacyWrapper implements Serializable {
+        int opcode;
+        String addr;
+        String[] sources;
+        ProjectLib.Message msg;
+        String filename;
+        legacyWrapper(int opcode, byte[] body, String addr, String[] sources, String filename) {
+            this.opcode = opcode;
+            this.addr = addr;
+            this.msg = new ProjectLib.Message(addr, body);
+            this.sources = sources;
+            this.filename = filename;
+        }
+    }
+
+    static byte[] javaEncode(Object obj) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(obj);
+        objectOutputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    static Object javaDecode(byte[] input) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(input)).readObject();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iters = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] sources = {"1.jpg", "2.jpg", "carnegie.jpg"};
+        int[] sizes = {0, 1 << 10, 64 << 10, 1 << 20, 4 << 20};
+        System.out.printf("%-10s %-7s %12s %12s %12s %12s%n",
+            "img bytes", "format", "wire bytes", "encode us", "decode us", "total us");
+        for (int size : sizes) {
+            byte[] img = size == 0 ? null : new byte[size];
+            if (img != null) {
+                new Random(size).nextBytes(img);
+            }
+            int opcode = img == null ? 2 : 1;
+            int n = size >= (1 << 20) ? Math.max(iters / 20, 10) : iters;
+            legacyWrapper legacy = new legacyWrapper(opcode, img, "a", sources, "composites/1.jpg");
+            messageWrapper msgwrap = new messageWrapper(opcode, img, "a", sources, "composites/1.jpg");
+
+            //warm up both paths before timing
+            for (int i = 0; i < n; i++) {
+                javaDecode(javaEncode(legacy));
+                wireCodec.decode(wireCodec.encode(msgwrap));
+            }
+
+            byte[] wire = null;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                wire = javaEncode(legacy);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                javaDecode(wire);
+            }
+            long t2 = System.nanoTime();
+            report(size, "java", wire.length, t1 - t0, t2 - t1, n);
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                wire = wireCodec.encode(msgwrap);
+            }
+            t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                wireCodec.decode(wire);
+            }
+            t2 = System.nanoTime();
+            report(size, "codec", wire.length, t1 - t0, t2 - t1, n);
+        }
+    }
+
+    static void report(int size, String format, int bytes, long enc, long dec, int n) {
+        double encUs = enc / 1e3 / n;
+        double decUs = dec / 1e3 / n;
+        System.out.printf("%-10d %-7s %12d %12.2f %12.2f %12.2f%n",
+            size, format, bytes, encUs, decUs, encUs + decUs);
+    }
+}
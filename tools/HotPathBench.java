@@ -0,0 +1,371 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HotPathBench measures the coordinator and participant hot paths and
+ * compares them against a recorded baseline:
+ *
+ *   codec.*        Server.serialize/deserialize of a PREPARE for a range of
+ *                  image sizes
+ *   log.*          Server.logState and UserNode.logState with a loopback
+ *                  fsync costing nothing or 100us, from 1 and 16 threads;
+ *                  every record is followed by a lazy END as in a real
+ *                  collage, so checkpoints stay small
+ *   mapSources.*   Server.mapSources for large source lists
+ *   locks.*        UserNode.isLocked/lock/unlock with many sources held
+ *   sources.*      UserNode.checkForImage of 4 sources with many files in
+ *                  the directory, and File.exists of the same sources as
+ *                  the reference it replaced
+ *   metrics.*      timing a phase into a latencyHistogram, from 1 and 16
+ *                  threads
+ *   trace.*        recording an event into an eventTrace and writing it to
+ *                  a file, from 1 and 16 threads
+ *   e2e.*          Server.startCommit of a 2 node collage over a loopback
+ *                  network with no delay and an instant user
+ *
+ * Every benchmark is warmed up for one iteration and then run for `iters`
+ * timed iterations of about `millis` milliseconds each, and reported as the
+ * mean time per operation with the spread across iterations, like JMH's
+ * average time mode. Results that matter to the caller are folded into a
+ * sink so that the JIT cannot drop the work.
+ *
+ * With -Dbaseline=<file>, each result is compared to the score recorded in
+ * that file and marked REGRESSION if it is more than 10% slower; with
+ * -Drecord=<file> the results are written to that file as the new baseline.
+ * bench-baseline.txt holds the current baseline.
+ *
+ * Build with make, then run from a scratch directory, for example:
+ *   mkdir -p run && cd run && java -cp ..:../../working:../../lib HotPathBench [filter]
+ * or use make bench. Only benchmarks whose name contains filter are run.
+ */
+public class HotPathBench {
+    static int iters = Integer.getInteger("iters", 5);
+    static long millis = Long.getLong("millis", 1000);
+    static volatile long sink;
+    static LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+
+    interface Op {
+        //runs the operation n times
+        void run(int n) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        //messages are sent as soon as they are queued, and no metrics or
+        //trace files are written
+        System.setProperty("batch.window", "0");
+        System.setProperty("metrics.dump.ms", "0");
+        System.setProperty("trace", "false");
+        Map<String, Double> baseline = load(System.getProperty("baseline"));
+        System.out.printf("%-36s %5s %12s %10s  %s%n", "Benchmark", "Cnt", "Score", "Error", "Units");
+
+        for (int size : new int[] {0, 1 << 10, 64 << 10, 1 << 20}) {
+            messageWrapper prepare = new messageWrapper(1, new byte[size], "n1", new String[] {"1.jpg", "2.jpg"}, "collage.jpg");
+            prepare.hash = imageCache.hash(prepare.img);
+            byte[] encoded = Server.serialize(prepare);
+            if (matches(filter, "codec.serialize." + size)) {
+                bench("codec.serialize." + size, n -> {
+                    for (int i = 0; i < n; i++) {
+                        sink += Server.serialize(prepare).length;
+                    }
+                }, baseline);
+            }
+            if (matches(filter, "codec.deserialize." + size)) {
+                bench("codec.deserialize." + size, n -> {
+                    for (int i = 0; i < n; i++) {
+                        sink += Server.deserialize(encoded).opcode;
+                    }
+                }, baseline);
+            }
+        }
+
+        for (long fsyncMicros : new long[] {0, 100}) {
+            LoopbackNetwork net = new LoopbackNetwork(0, 0, 0, fsyncMicros, 0, 1);
+            for (int threads : new int[] {1, 16}) {
+                String name = "log.server.fsync" + fsyncMicros + "us.t" + threads;
+                if (matches(filter, name)) {
+                    Server.log = new serverLog("bench-server.log", net.attach("Server"));
+                    String[] sources = {"n1:1.jpg", "n2:2.jpg"};
+                    bench(name, parallel(threads, i -> {
+                        Server.logState(logRecord.begin("c" + i + ".jpg", "t" + i, sources, "c.stage"));
+                        Server.logStateLazy(logRecord.end("c" + i + ".jpg", "t" + i));
+                    }), baseline);
+                    Server.log.close();
+                }
+                name = "log.user.fsync" + fsyncMicros + "us.t" + threads;
+                if (matches(filter, name)) {
+                    UserNode.log = new serverLog("bench-user.log", net.attach("n1"));
+                    String[] sources = {"1.jpg", "2.jpg"};
+                    bench(name, parallel(threads, i -> {
+                        UserNode.logState(logRecord.vote("c" + i + ".jpg", "t" + i, sources, 2, 1));
+                        UserNode.logStateLazy(logRecord.end("c" + i + ".jpg", "t" + i));
+                    }), baseline);
+                    UserNode.log.close();
+                }
+            }
+        }
+        Files.deleteIfExists(Paths.get("bench-server.log"));
+        Files.deleteIfExists(Paths.get("bench-user.log"));
+
+        for (int count : new int[] {10, 1000, 100000}) {
+            String[] sources = new String[count];
+            for (int i = 0; i < count; i++) {
+                sources[i] = "n" + (i % 64) + ":" + i + ".jpg";
+            }
+            String name = "mapSources." + count;
+            if (matches(filter, name)) {
+                bench(name, n -> {
+                    for (int i = 0; i < n; i++) {
+                        HashMap<String, ArrayList<String>> sourceMap = new HashMap<String, ArrayList<String>>();
+                        Server.mapSources(sources, sourceMap, "collage.jpg");
+                        sink += sourceMap.size();
+                    }
+                    Server.sourceList.clear();
+                }, baseline);
+            }
+        }
+
+        for (int held : new int[] {10000, 100000}) {
+            String name = "locks.held" + held;
+            if (!matches(filter, name)) {
+                continue;
+            }
+            UserNode.locks = new lockManager();
+            for (int i = 0; i < held; i++) {
+                UserNode.lock("held", new String[] {"held-" + i + ".jpg"});
+            }
+            String[][] collages = new String[1024][];
+            for (int i = 0; i < collages.length; i++) {
+                collages[i] = new String[] {"a" + i + ".jpg", "b" + i + ".jpg", "c" + i + ".jpg", "d" + i + ".jpg"};
+            }
+            bench(name, n -> {
+                for (int i = 0; i < n; i++) {
+                    String[] sources = collages[i & 1023];
+                    if (!UserNode.isLocked(sources) && UserNode.lock("c", sources)) {
+                        UserNode.unlock("c", sources);
+                        sink++;
+                    }
+                }
+            }, baseline);
+        }
+
+        for (int count : new int[] {1000, 100000}) {
+            String name = "sources.files" + count;
+            String probe = "sources.probe.files" + count;
+            if (!matches(filter, name) && !matches(filter, probe)) {
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                LoadGen.touch("s" + i + ".jpg");
+            }
+            UserNode.files = sourceIndex.open(Paths.get("."), true);
+            String[][] collages = new String[1024][];
+            for (int i = 0; i < collages.length; i++) {
+                int s = i * 7919 % count;
+                collages[i] = new String[] {"s" + s + ".jpg", "s" + (s + 1) % count + ".jpg",
+                    "s" + (s + 2) % count + ".jpg", "s" + (s + 3) % count + ".jpg"};
+            }
+            if (matches(filter, name)) {
+                bench(name, n -> {
+                    for (int i = 0; i < n; i++) {
+                        if (UserNode.checkForImage(collages[i & 1023])) {
+                            sink++;
+                        }
+                    }
+                }, baseline);
+            }
+            if (matches(filter, probe)) {
+                bench(probe, n -> {
+                    for (int i = 0; i < n; i++) {
+                        for (String source : collages[i & 1023]) {
+                            if (new File(source).exists()) {
+                                sink++;
+                            }
+                        }
+                    }
+                }, baseline);
+            }
+            for (int i = 0; i < count; i++) {
+                Files.deleteIfExists(Paths.get("s" + i + ".jpg"));
+            }
+        }
+
+        latencyHistogram histogram = new latencyHistogram();
+        for (int threads : new int[] {1, 16}) {
+            String name = "metrics.record.t" + threads;
+            if (matches(filter, name)) {
+                bench(name, parallel(threads, i -> histogram.since(System.nanoTime())), baseline);
+            }
+        }
+
+        for (int threads : new int[] {1, 16}) {
+            String name = "trace.record.t" + threads;
+            if (matches(filter, name)) {
+                eventTrace trace = new eventTrace("bench.trace", "Server", 1 << 16);
+                //hold back while the buffer is half full, so the score is the
+                //sustained cost per event including the writer's share
+                bench(name, parallel(threads, i -> {
+                    while (trace.backlog() > 1 << 15) {
+                        Thread.yield();
+                    }
+                    trace.record(eventTrace.VOTE, "collage.jpg", "n1", 2);
+                }), baseline);
+                trace.close();
+                System.out.printf("  (%d events dropped by a full buffer)%n", trace.droppedCount());
+                Files.deleteIfExists(Paths.get("bench.trace"));
+            }
+        }
+
+        if (matches(filter, "e2e")) {
+            e2e(filter, baseline);
+        }
+
+        String record = System.getProperty("record");
+        if (record != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(record))) {
+                for (Map.Entry<String, double[]> e : results.entrySet()) {
+                    out.printf("%s %.3f%n", e.getKey(), e.getValue()[0]);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    //end-to-end startCommit with the usernodes on a loopback network
+    static void e2e(String filter, Map<String, Double> baseline) throws Exception {
+        LoopbackNetwork net = new LoopbackNetwork(0, 0, 0, 0, 0, 1);
+        LoadGen.net = net;
+        LoadGen.workingPath = new java.net.URL[] {Server.class.getProtectionDomain().getCodeSource().getLocation()};
+        Server srv = new Server();
+        LoopbackNetwork.Endpoint ep = net.attach("Server");
+        Server.init(ep, "bench-serverState.log");
+        ep.open(srv);
+        LoadGen.startNode("n1");
+        LoadGen.startNode("n2");
+        byte[] img = new byte[16 << 10];
+        AtomicInteger seq = new AtomicInteger();
+        for (int threads : new int[] {1, 16}) {
+            String name = "e2e.startCommit.t" + threads;
+            if (!matches(filter, name)) {
+                continue;
+            }
+            bench(name, parallel(threads, i -> {
+                int c = seq.incrementAndGet();
+                String[] sources = {"n1:e" + c + "a.jpg", "n2:e" + c + "b.jpg"};
+                LoadGen.touch("e" + c + "a.jpg");
+                LoadGen.touch("e" + c + "b.jpg");
+                img[0] = (byte)c;
+                srv.startCommit("e2e-" + c + ".jpg", img.clone(), sources);
+                new File("e2e-" + c + ".jpg").delete();
+            }), baseline);
+        }
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."))) {
+            for (Path p : dir) {
+                String name = p.getFileName().toString();
+                if (name.startsWith("e2e-") || name.matches("e\\d+[ab]\\.jpg") || name.startsWith("bench-serverState")
+                        || name.matches("userState-n\\d+\\.log(\\.ckpt)?")) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    interface IndexedOp {
+        void run(int i) throws Exception;
+    }
+
+    //splits n operations across threads, each operation given its index
+    static Op parallel(int threads, IndexedOp op) {
+        return n -> {
+            if (threads == 1) {
+                for (int i = 0; i < n; i++) {
+                    op.run(i);
+                }
+                return;
+            }
+            AtomicInteger next = new AtomicInteger();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    int i;
+                    try {
+                        while ((i = next.getAndIncrement()) < n) {
+                            op.run(i);
+                        }
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        };
+    }
+
+    /**
+     * @brief bench() calibrates a batch size that takes about `millis`, runs
+     * one warm-up iteration and `iters` timed ones, and reports ns per op
+     */
+    static void bench(String name, Op op, Map<String, Double> baseline) throws Exception {
+        int n = 1;
+        while (true) {
+            long t0 = System.nanoTime();
+            op.run(n);
+            long took = System.nanoTime() - t0;
+            if (took >= millis * 1000000 / 4 || n >= (1 << 28)) {
+                n = (int)Math.max(1, Math.min(1L << 28, n * (millis * 1000000L) / Math.max(took, 1)));
+                break;
+            }
+            n *= 4;
+        }
+        op.run(n);
+        double[] scores = new double[iters];
+        for (int it = 0; it < iters; it++) {
+            long t0 = System.nanoTime();
+            op.run(n);
+            scores[it] = (System.nanoTime() - t0) / (double)n;
+        }
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= iters;
+        double var = 0;
+        for (double s : scores) {
+            var += (s - mean) * (s - mean);
+        }
+        double error = iters > 1 ? Math.sqrt(var / (iters - 1)) : 0;
+        results.put(name, new double[] {mean, error});
+        String verdict = "";
+        Double base = baseline.get(name);
+        if (base != null) {
+            double change = (mean - base) / base * 100;
+            verdict = String.format("  %+.1f%% vs baseline%s", change, change > 10 ? "  REGRESSION" : "");
+        }
+        System.out.printf("%-36s %5d %12.1f %10.1f  ns/op%s%n", name, iters, mean, error, verdict);
+    }
+
+    static boolean matches(String filter, String name) {
+        return name.contains(filter);
+    }
+
+    static Map<String, Double> load(String path) throws IOException {
+        HashMap<String, Double> scores = new HashMap<String, Double>();
+        if (path == null) {
+            return scores;
+        }
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2 && !line.startsWith("#")) {
+                scores.put(parts[0], Double.parseDouble(parts[1]));
+            }
+        }
+        return scores;
+    }
+}
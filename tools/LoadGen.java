@@ -0,0 +1,546 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * LoadGen drives thousands of collages through a Server and a set of
+ * usernodes running in one JVM on a LoopbackNetwork, and reports throughput,
+ * latency percentiles, messages and fsyncs per collage.
+ *
+ * Every usernode keeps its state in static fields, so each one is loaded by
+ * its own NodeLoader, which gives it a private copy of every class in
+ * working/ except transport. The Server is loaded normally. Nodes share the
+ * working directory; their sources are named <node>_<n>.jpg and their logs
+ * userState-<node>.log so that they do not collide.
+ *
+ * Each of `concurrency` threads repeatedly starts a collage of `sources`
+ * sources spread over `spread` random nodes. With probability `overlap` a
+ * source is taken from a small pool of `hot` sources per node instead of a
+ * fresh file, so that concurrent collages compete for it; a hot source is
+ * created again after a collage that used it commits.
+ *
+ * Settings are system properties (defaults in brackets): nodes [8],
+ * collages [5000], warmup [200], concurrency [64], sources [4], spread [2],
+ * overlap [0.1], hot [4], img [16384] bytes, delay [1] and jitter [1] ms per
+ * link, drop [0], fsync.us [200], think [0] ms plus up to think.jitter [0] ms
+ * per prompt, yes [0.95], and
+ * crash=<node>@<ms>+<ms> to crash a node that long after the start and
+ * restart it from its log after the second delay, and outage=<ms>+<ms> to
+ * cut every shard off from the usernodes that long after the start, for
+ * the second delay, or only from outage.nodes=<node>,... if set; usernodes
+ * still reach each other. The Server and UserNode settings (batch.window,
+ * conflict.policy, presumed.abort, one.phase, log.checkpoint.bytes,
+ * scheduler.*) apply as usual.
+ *
+ * shards [1] coordinator shards route the collages between them, see
+ * shardMap. "Server" is loaded normally and the others, "Server-1" and up,
+ * each in a NodeLoader like the usernodes. shards.max [shards] shards are
+ * started, and rebalance.at=<ms> switches from shards to shards.max that
+ * long after the start, to watch collages move between shards mid-run.
+ *
+ * The report includes the longest time sources stayed locked on any
+ * usernode, the peak heap in use and the garbage collection
+ * pauses while measuring. The callers' own images count towards the heap:
+ * concurrency threads each hold the img bytes they passed to startCommit().
+ *
+ * Build with make, then run from an empty scratch directory, for example:
+ *   mkdir -p run && cd run && java -cp ..:../../working:../../lib LoadGen
+ * or use make load.
+ */
+public class LoadGen {
+    private static final int PREPARE = 1;
+    private static final int COMMIT = 2;
+    private static final int ABORT = -1;
+    private static final int ACK = 3;
+    private static final int FETCH = 4;
+    private static final int ONE_PHASE = 7;
+
+    static LoopbackNetwork net;
+    static URL[] workingPath;
+    static String[] nodes;
+    //UserNode class of each usernode, for its metrics
+    static ArrayList<Class<?>> nodeClasses = new ArrayList<Class<?>>();
+    //Server class of each shard other than "Server"
+    static ArrayList<Class<?>> shardClasses = new ArrayList<Class<?>>();
+    static final AtomicLong seq = new AtomicLong();
+    //collages that were sent a PREPARE or one-phase request
+    static final Set<String> prepared = ConcurrentHashMap.newKeySet();
+    static final AtomicLong prepares = new AtomicLong();
+    static final AtomicLong votes = new AtomicLong();
+    static final AtomicLong decisions = new AtomicLong();
+    static final AtomicLong acks = new AtomicLong();
+    static final AtomicLong fetches = new AtomicLong();
+    //heap and garbage collection while measuring, see watchHeap()
+    static volatile boolean measuring = false;
+    static final AtomicLong peakHeap = new AtomicLong();
+    static final AtomicLong gcPauses = new AtomicLong();
+    static final AtomicLong gcPauseMs = new AtomicLong();
+    static final AtomicLong gcMaxPauseMs = new AtomicLong();
+
+    /**
+     * NodeLoader loads a private copy of the working/ classes for one
+     * usernode, sharing only transport and ProjectLib with the rest of the JVM
+     */
+    static class NodeLoader extends URLClassLoader {
+        NodeLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals("transport") || name.startsWith("ProjectLib") || name.startsWith("java")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    try {
+                        c = findClass(name);
+                    }
+                    catch (ClassNotFoundException e) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numNodes = Integer.getInteger("nodes", 8);
+        int collages = Integer.getInteger("collages", 5000);
+        int warmup = Integer.getInteger("warmup", 200);
+        int concurrency = Integer.getInteger("concurrency", 64);
+        int sources = Integer.getInteger("sources", 4);
+        int spread = Math.min(Integer.getInteger("spread", 2), numNodes);
+        double overlap = Double.parseDouble(System.getProperty("overlap", "0.1"));
+        int hot = Integer.getInteger("hot", 4);
+        int imgSize = Integer.getInteger("img", 16384);
+        long delay = Long.getLong("delay", 1);
+        long jitter = Long.getLong("jitter", 1);
+        double drop = Double.parseDouble(System.getProperty("drop", "0"));
+        long fsyncMicros = Long.getLong("fsync.us", 200);
+        long think = Long.getLong("think", 0);
+        double yes = Double.parseDouble(System.getProperty("yes", "0.95"));
+
+        net = new LoopbackNetwork(delay, jitter, drop, fsyncMicros, think, yes);
+        net.setThinkJitter(Long.getLong("think.jitter", 0));
+        net.setListener(LoadGen::count);
+        workingPath = new URL[] {Server.class.getProtectionDomain().getCodeSource().getLocation()};
+
+        int numShards = Integer.getInteger("shards", 1);
+        int maxShards = Math.max(numShards, Integer.getInteger("shards.max", numShards));
+        Server srv = new Server();
+        LoopbackNetwork.Endpoint serverEp = net.attach("Server");
+        Server.init(serverEp, "serverState.log");
+        serverEp.open(srv);
+        for (int i = 1; i < maxShards; i++) {
+            startShard("Server-" + i);
+        }
+        nodes = new String[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            nodes[i] = "n" + i;
+            startNode(nodes[i]);
+            for (int h = 0; h < hot; h++) {
+                touch(nodes[i] + "_hot" + h + ".jpg");
+            }
+        }
+
+        long start = System.nanoTime();
+        String crash = System.getProperty("crash");
+        if (crash != null) {
+            scheduleCrash(crash);
+        }
+        String outage = System.getProperty("outage");
+        if (outage != null) {
+            scheduleOutage(outage, maxShards, delay, drop);
+        }
+        Long rebalanceAt = Long.getLong("rebalance.at");
+        if (rebalanceAt != null) {
+            scheduleRebalance(rebalanceAt, maxShards);
+        }
+        //warm up, then measure
+        run(srv, warmup, concurrency, sources, spread, overlap, hot, imgSize, null);
+        long msgs0 = net.messages.get();
+        long fsyncs0 = net.fsyncs.get();
+        long prepares0 = prepares.get(), votes0 = votes.get(), decisions0 = decisions.get(), acks0 = acks.get();
+        long[] lat = new long[collages];
+        int[] outcome = new int[3];
+        boolean[] abortedAt = new boolean[collages];
+        long cut0 = net.promptsCut.get();
+        watchHeap();
+        long t0 = System.nanoTime();
+        run(srv, collages, concurrency, sources, spread, overlap, hot, imgSize, new Object[] {lat, outcome, abortedAt});
+        long elapsed = System.nanoTime() - t0;
+
+        int committed = outcome[0], aborted = outcome[1], wasted = outcome[2];
+        System.out.printf("nodes=%d collages=%d concurrency=%d sources=%d spread=%d overlap=%.2f img=%d delay=%d+%dms drop=%.3f fsync=%dus think=%dms yes=%.2f%n",
+            numNodes, collages, concurrency, sources, spread, overlap, imgSize, delay, jitter, drop, fsyncMicros, think, yes);
+        System.out.printf("batch.window=%s conflict.policy=%s presumed.abort=%s one.phase=%s shards=%d%s%n",
+            Long.getLong("batch.window", 2), System.getProperty("conflict.policy", "queue"),
+            Server.PRESUMED_ABORT, Server.ONE_PHASE_ENABLED, numShards,
+            rebalanceAt != null ? " -> " + maxShards + " at " + rebalanceAt + "ms" : "");
+        System.out.printf("throughput  %.1f commits/s, %.1f collages/s (%d committed, %d aborted, %.1f%% abort) in %.2f s%n",
+            committed / (elapsed / 1e9), collages / (elapsed / 1e9), committed, aborted,
+            100.0 * aborted / collages, elapsed / 1e9);
+        long[] abortLat = new long[aborted];
+        for (int i = 0, n = 0; i < collages; i++) {
+            if (abortedAt[i] && n < aborted) {
+                abortLat[n++] = lat[i];
+            }
+        }
+        Arrays.sort(lat);
+        Arrays.sort(abortLat);
+        System.out.printf("latency     p50 %.2f ms  p99 %.2f ms  p999 %.2f ms  max %.2f ms%n",
+            pct(lat, 0.50), pct(lat, 0.99), pct(lat, 0.999), lat[lat.length - 1] / 1e6);
+        if (aborted > 0) {
+            System.out.printf("aborted     p50 %.2f ms  p99 %.2f ms; %d prompts cut short%n",
+                pct(abortLat, 0.50), pct(abortLat, 0.99), net.promptsCut.get() - cut0);
+        }
+        System.out.printf("messages    %.2f ProjectLib messages/collage; per collage %.2f prepare, %.2f vote, %.2f decision, %.2f ack%n",
+            (net.messages.get() - msgs0) / (double)collages, (prepares.get() - prepares0) / (double)collages,
+            (votes.get() - votes0) / (double)collages, (decisions.get() - decisions0) / (double)collages,
+            (acks.get() - acks0) / (double)collages);
+        System.out.printf("prepare     %.3f wasted rounds/collage (%d collages prepared and then aborted)%n",
+            wasted / (double)collages, wasted);
+        System.out.printf("fsyncs      %.2f/collage over all nodes%n", (net.fsyncs.get() - fsyncs0) / (double)collages);
+        long[] admitted = {Server.admission.admitted, Server.admission.queued, Server.admission.rejected};
+        for (Class<?> cls : shardClasses) {
+            //the shard's own copy of admissionControl, in another runtime package
+            Object admission = field(cls, "admission", null);
+            admitted[0] += (Long)field(admission.getClass(), "admitted", admission);
+            admitted[1] += (Long)field(admission.getClass(), "queued", admission);
+            admitted[2] += (Long)field(admission.getClass(), "rejected", admission);
+        }
+        System.out.printf("admission   admitted %d, queued %d, rejected %d%n", admitted[0], admitted[1], admitted[2]);
+        long[] scheduled = {Server.scheduler.scheduled, Server.scheduler.queued, Server.scheduler.rejected, Server.scheduler.shed};
+        for (Class<?> cls : shardClasses) {
+            Object scheduler = field(cls, "scheduler", null);
+            scheduled[0] += (Long)field(scheduler.getClass(), "scheduled", scheduler);
+            scheduled[1] += (Long)field(scheduler.getClass(), "queued", scheduler);
+            scheduled[2] += (Long)field(scheduler.getClass(), "rejected", scheduler);
+            scheduled[3] += (Long)field(scheduler.getClass(), "shed", scheduler);
+        }
+        System.out.printf("scheduler   scheduled %d, queued %d, rejected %d, shed %d%n", scheduled[0], scheduled[1], scheduled[2], scheduled[3]);
+        System.out.printf("network     %d dropped, %d fetches%n", net.dropped.get(), fetches.get());
+        long heldP99 = 0, heldMax = 0, terminations = 0;
+        for (Class<?> cls : nodeClasses) {
+            Object stats = field(cls, "stats", null);
+            java.lang.reflect.Method counters = stats.getClass().getDeclaredMethod("getCounters");
+            counters.setAccessible(true);
+            Map<?, ?> byPeer = (Map<?, ?>)((Map<?, ?>)counters.invoke(stats)).get("terminations");
+            if (byPeer != null) {
+                for (Object n : byPeer.values()) {
+                    terminations += (Long)n;
+                }
+            }
+            //the node's own latencyHistogram, in another runtime package
+            Object held = field(cls, "lockHeldTime", null);
+            java.lang.reflect.Method percentile = held.getClass().getDeclaredMethod("percentile", double.class);
+            percentile.setAccessible(true);
+            heldP99 = Math.max(heldP99, (Long)percentile.invoke(held, 0.99));
+            heldMax = Math.max(heldMax, (Long)percentile.invoke(held, 1.0));
+        }
+        System.out.printf("locks       held p99 %.2f ms, max %.2f ms on the worst usernode; %d collages ended by peers%n",
+            heldP99 / 1e6, heldMax / 1e6, terminations);
+        measuring = false;
+        System.out.printf("memory      peak heap %d MB; %d GC pauses, %d ms total, %d ms max%n",
+            peakHeap.get() >> 20, gcPauses.get(), gcPauseMs.get(), gcMaxPauseMs.get());
+        if (!Boolean.getBoolean("keep")) {
+            cleanup();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @brief run() runs count collages from concurrency threads
+     * @param stats takes {long[] latencies, int[] {committed, aborted, wasted},
+     * boolean[] aborted}
+     * to record into, or null for a warm-up
+     */
+    static void run(Server srv, int count, int concurrency, int sources, int spread, double overlap,
+            int hot, int imgSize, Object[] stats) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] threads = new Thread[concurrency];
+        for (int t = 0; t < concurrency; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                int i;
+                while ((i = next.getAndIncrement()) < count) {
+                    String filename = "collage-" + seq.incrementAndGet() + ".jpg";
+                    String[] srcs = pickSources(rnd, sources, spread, overlap, hot);
+                    byte[] img = new byte[imgSize];
+                    rnd.nextBytes(img);
+                    long t0 = System.nanoTime();
+                    srv.startCommit(filename, img, srcs);
+                    long t1 = System.nanoTime();
+                    boolean committed = new File(filename).delete();
+                    boolean wasPrepared = prepared.remove(filename);
+                    if (committed) {
+                        //hot sources are taken again by later collages
+                        for (String src : srcs) {
+                            String name = src.substring(src.indexOf(':') + 1);
+                            if (name.contains("_hot")) {
+                                touch(name);
+                            }
+                        }
+                    }
+                    if (stats == null) {
+                        continue;
+                    }
+                    ((long[])stats[0])[i] = t1 - t0;
+                    ((boolean[])stats[2])[i] = !committed;
+                    int[] outcome = (int[])stats[1];
+                    synchronized (outcome) {
+                        outcome[committed ? 0 : 1]++;
+                        if (!committed && wasPrepared) {
+                            outcome[2]++;
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @brief watchHeap() samples the heap in use every 10 ms and records the
+     * stop-the-world collections until measuring is cleared
+     */
+    static void watchHeap() {
+        measuring = true;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter)gc).addNotificationListener((notification, handback) -> {
+                if (!measuring || !notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+                //concurrent cycles do not stop the application
+                if (info.getGcName().contains("Concurrent")) {
+                    return;
+                }
+                long ms = info.getGcInfo().getDuration();
+                gcPauses.incrementAndGet();
+                gcPauseMs.addAndGet(ms);
+                gcMaxPauseMs.accumulateAndGet(ms, Math::max);
+            }, null, null);
+        }
+        Thread sampler = new Thread(() -> {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            while (measuring) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "heap-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    static String[] pickSources(ThreadLocalRandom rnd, int sources, int spread, double overlap, int hot) {
+        //pick `spread` distinct nodes
+        ArrayList<String> picked = new ArrayList<String>();
+        while (picked.size() < spread) {
+            String node = nodes[rnd.nextInt(nodes.length)];
+            if (!picked.contains(node)) {
+                picked.add(node);
+            }
+        }
+        LinkedHashSet<String> srcs = new LinkedHashSet<String>();
+        for (int s = 0; srcs.size() < sources; s++) {
+            String node = picked.get(s % spread);
+            String name;
+            if (hot > 0 && rnd.nextDouble() < overlap) {
+                name = node + "_hot" + rnd.nextInt(hot) + ".jpg";
+            }
+            else {
+                name = node + "_" + seq.incrementAndGet() + ".jpg";
+                touch(name);
+            }
+            srcs.add(node + ":" + name);
+        }
+        return srcs.toArray(new String[0]);
+    }
+
+    /**
+     * @brief startNode() starts, or restarts from its log, the usernode id in
+     * its own NodeLoader
+     * @param id takes String node address
+     */
+    static void startNode(String id) throws Exception {
+        NodeLoader loader = new NodeLoader(workingPath, LoadGen.class.getClassLoader());
+        Class<?> cls = loader.loadClass("UserNode");
+        Object node = cls.getConstructor(String.class).newInstance(id);
+        LoopbackNetwork.Endpoint ep = net.attach(id);
+        cls.getMethod("init", transport.class, String.class).invoke(null, ep, "userState-" + id + ".log");
+        ep.open((ProjectLib.MessageHandling)node);
+        nodeClasses.add(cls);
+    }
+
+    /**
+     * @brief startShard() starts coordinator shard id in its own NodeLoader,
+     * or restarts it from its log, and returns once recovery is done
+     * @param id takes String shard address
+     */
+    static void startShard(String id) throws Exception {
+        NodeLoader loader = new NodeLoader(workingPath, LoadGen.class.getClassLoader());
+        Class<?> cls = loader.loadClass("Server");
+        Object shard = cls.getConstructor().newInstance();
+        LoopbackNetwork.Endpoint ep = net.attach(id);
+        //as with ProjectLib in Server.main, messages flow while init()
+        //recovers the shard's log, which waits for the nodes' acks
+        Thread init = new Thread(() -> {
+            try {
+                cls.getMethod("init", transport.class, String.class, String.class).invoke(null, ep, id, "serverState-" + id + ".log");
+            }
+            catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        });
+        init.start();
+        ep.open((ProjectLib.MessageHandling)shard);
+        init.join();
+        shardClasses.add(cls);
+    }
+
+    static void scheduleRebalance(long at, int count) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rebalance-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.schedule(() -> {
+            System.out.println("rebalance to " + count + " shards");
+            Server.setShards(count);
+        }, at, TimeUnit.MILLISECONDS);
+    }
+
+    static void scheduleOutage(String spec, int shards, long delay, double drop) {
+        //<ms>+<ms>
+        String[] times = spec.split("\\+");
+        long at = Long.parseLong(times[0]);
+        long down = times.length > 1 ? Long.parseLong(times[1]) : 1000;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "outage-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.schedule(() -> {
+            System.out.println("outage of " + down + " ms");
+            cutShards(shards, delay, 1.0);
+            timer.schedule(() -> {
+                System.out.println("outage over");
+                cutShards(shards, delay, drop);
+            }, down, TimeUnit.MILLISECONDS);
+        }, at, TimeUnit.MILLISECONDS);
+    }
+
+    //sets the links between every shard and every usernode both ways
+    static void cutShards(int shards, long delay, double drop) {
+        for (int i = 0; i < shards; i++) {
+            String shard = i == 0 ? "Server" : "Server-" + i;
+            for (String node : System.getProperty("outage.nodes", String.join(",", nodes)).split(",")) {
+                net.setLink(shard, node, delay, drop);
+                net.setLink(node, shard, delay, drop);
+            }
+        }
+    }
+
+    static void scheduleCrash(String spec) {
+        //<node>@<ms>+<ms>
+        String node = spec.substring(0, spec.indexOf('@'));
+        String[] times = spec.substring(spec.indexOf('@') + 1).split("\\+");
+        long at = Long.parseLong(times[0]);
+        long down = times.length > 1 ? Long.parseLong(times[1]) : 1000;
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "crash-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.schedule(() -> {
+            System.out.println("crash " + node);
+            net.crash(node);
+            timer.schedule(() -> {
+                try {
+                    System.out.println("restart " + node);
+                    startNode(node);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, down, TimeUnit.MILLISECONDS);
+        }, at, TimeUnit.MILLISECONDS);
+    }
+
+    static void count(String from, String to, int opcode, String filename) {
+        boolean fromServer = from.startsWith("Server");
+        switch (opcode) {
+            case PREPARE:
+            case ONE_PHASE:
+                prepares.incrementAndGet();
+                prepared.add(filename);
+                break;
+            case COMMIT:
+            case ABORT:
+                (fromServer ? decisions : votes).incrementAndGet();
+                break;
+            case ACK:
+                acks.incrementAndGet();
+                break;
+            case FETCH:
+                fetches.incrementAndGet();
+                break;
+        }
+    }
+
+    static Object field(Class<?> cls, String name, Object obj) throws ReflectiveOperationException {
+        java.lang.reflect.Field f = cls.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(obj);
+    }
+
+    static double pct(long[] sorted, double p) {
+        int i = (int)Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1e6;
+    }
+
+    static void touch(String name) {
+        try {
+            new File(name).createNewFile();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //removes the files a run leaves in the working directory
+    static void cleanup() throws IOException {
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."))) {
+            for (Path p : dir) {
+                String name = p.getFileName().toString();
+                if (name.matches("n\\d+_.*\\.jpg") || name.startsWith("collage-") || name.startsWith("spool-")
+                        || name.matches("userState-n\\d+\\.log(\\.ckpt)?") || name.matches("serverState(-Server-\\d+)?\\.log(\\.ckpt)?")) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+}
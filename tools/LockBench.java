@@ -0,0 +1,92 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LockBench measures lock, isLocked and unlock for a usernode holding a large
+ * number of locked sources, comparing lockManager with the LinkedList lock
+ * table it replaced. Each collage locks SOURCES sources; the table is first
+ * filled with `held` locked sources and then collages are locked and unlocked
+ * on top of it, single-threaded and from several threads at once.
+ *
+ * Build with make, then run: java -cp .:../working:../lib LockBench [held]
+ */
+public class LockBench {
+    private static final int SOURCES = 4;
+
+    public static void main(String[] args) throws Exception {
+        int held = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int ops = 20000;
+        String[][] collages = new String[ops][];
+        for (int i = 0; i < ops; i++) {
+            collages[i] = new String[SOURCES];
+            for (int j = 0; j < SOURCES; j++) {
+                collages[i][j] = "free-" + i + "-" + j + ".jpg";
+            }
+        }
+
+        //the old lock table: a LinkedList scanned with contains()
+        LinkedList<String> lockList = new LinkedList<String>();
+        for (int i = 0; i < held; i++) {
+            lockList.add("held-" + i + ".jpg");
+        }
+        int listOps = Math.min(ops, 2000);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < listOps; i++) {
+            String[] sources = collages[i];
+            boolean locked = false;
+            for (String source : sources) {
+                locked |= lockList.contains(source);
+            }
+            if (!locked) {
+                lockList.addAll(Arrays.asList(sources));
+            }
+            for (String source : sources) {
+                lockList.remove(source);
+            }
+        }
+        long t1 = System.nanoTime();
+        System.out.printf("LinkedList   held=%d  %10.2f us per collage%n", held, (t1 - t0) / 1e3 / listOps);
+
+        lockManager locks = new lockManager();
+        for (int i = 0; i < held; i++) {
+            locks.tryLockAll("held", new String[] {"held-" + i + ".jpg"});
+        }
+        //warm up
+        for (int i = 0; i < ops; i++) {
+            lockAndUnlock(locks, "c" + i, collages[i]);
+        }
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            lockAndUnlock(locks, "c" + i, collages[i]);
+        }
+        t1 = System.nanoTime();
+        System.out.printf("lockManager  held=%d  %10.2f us per collage%n", held, (t1 - t0) / 1e3 / ops);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<Future<?>>();
+        t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            done.add(pool.submit(() -> {
+                for (int i = first; i < ops; i += threads) {
+                    lockAndUnlock(locks, "c" + i, collages[i]);
+                }
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        t1 = System.nanoTime();
+        pool.shutdown();
+        System.out.printf("lockManager  held=%d  %10.2f us per collage (%d threads, %.0f collages/s)%n",
+            held, (t1 - t0) / 1e3 / ops, threads, ops / ((t1 - t0) / 1e9));
+        System.out.println("locked sources left: " + locks.size());
+    }
+
+    static void lockAndUnlock(lockManager locks, String txn, String[] sources) {
+        if (!locks.isLocked(sources) && locks.tryLockAll(txn, sources)) {
+            locks.unlockAll(txn, sources);
+        }
+    }
+}
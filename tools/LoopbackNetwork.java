@@ -0,0 +1,281 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoopbackNetwork connects a server and any number of usernodes inside one
+ * JVM. Every node attaches an Endpoint, which implements the same
+ * sendMessage/getMessage/askUser/fsync contract as ProjectLib (see
+ * transport), so Server and UserNode run on it unchanged.
+ *
+ * Each message is delivered after the link's delay plus a random jitter, or
+ * dropped with the link's drop rate; delay and drop can be set per link
+ * (from, to). Messages to a destination are handed to its deliverMessage()
+ * by one thread per destination, like ProjectLib does. crash() cuts a node
+ * off: everything it sends or is sent is dropped until a new Endpoint is
+ * attached under the same address. fsync() costs fsyncMicros and askUser()
+ * waits thinkMs, plus up to the think jitter, and says yes with probability
+ * yesRate. An interrupt ends the wait early, as a user closing the prompt.
+ *
+ * Every protocol message is counted by opcode, and a Listener can watch
+ * them, so tools can count PREPARE rounds and decisions per collage.
+ */
+public class LoopbackNetwork {
+    //opcode of a batch envelope, see wireCodec
+    private static final int BATCH = 6;
+
+    public interface Listener {
+        void onMessage(String from, String to, int opcode, String filename);
+    }
+
+    private final long delayMs;
+    private final long jitterMs;
+    private final double dropRate;
+    private final long fsyncMicros;
+    private final long thinkMs;
+    private final double yesRate;
+    private volatile long thinkJitterMs = 0;
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final ConcurrentHashMap<String, ScheduledExecutorService> deliverers = new ConcurrentHashMap<String, ScheduledExecutorService>();
+    //per-link overrides of {delay in ms, drop rate}
+    private final ConcurrentHashMap<String, double[]> links = new ConcurrentHashMap<String, double[]>();
+    private volatile Listener listener;
+
+    //ProjectLib messages sent, dropped and delivered, and their bytes
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    //protocol messages (a batch counts each message in it) by opcode
+    final ConcurrentHashMap<Integer, AtomicLong> byOpcode = new ConcurrentHashMap<Integer, AtomicLong>();
+    final AtomicLong fsyncs = new AtomicLong();
+    final AtomicLong prompts = new AtomicLong();
+    //prompts interrupted before the user answered
+    final AtomicLong promptsCut = new AtomicLong();
+
+    public LoopbackNetwork(long delayMs, long jitterMs, double dropRate, long fsyncMicros, long thinkMs, double yesRate) {
+        this.delayMs = delayMs;
+        this.jitterMs = jitterMs;
+        this.dropRate = dropRate;
+        this.fsyncMicros = fsyncMicros;
+        this.thinkMs = thinkMs;
+        this.yesRate = yesRate;
+    }
+
+    /**
+     * @brief attach() adds a node under addr, replacing (and crashing) any
+     * earlier endpoint of that address. Messages that arrive before
+     * Endpoint.open() is called are held and delivered by it.
+     * @param addr takes String address of the node, "Server" for the server
+     * @return returns the node's Endpoint
+     */
+    public Endpoint attach(String addr) {
+        Endpoint ep = new Endpoint(addr);
+        Endpoint old = endpoints.put(addr, ep);
+        if (old != null) {
+            old.alive = false;
+        }
+        return ep;
+    }
+
+    /**
+     * @brief crash() cuts a node off until it is attached again
+     * @param addr takes String address of the node
+     */
+    public void crash(String addr) {
+        Endpoint ep = endpoints.remove(addr);
+        if (ep != null) {
+            ep.alive = false;
+        }
+    }
+
+    /**
+     * @brief setLink() overrides delay and drop rate from one node to another
+     * @param from takes String sender address
+     * @param to takes String destination address
+     * @param delayMs takes long one-way delay in milliseconds
+     * @param dropRate takes double probability a message is lost
+     */
+    public void setLink(String from, String to, long delayMs, double dropRate) {
+        links.put(from + "->" + to, new double[] {delayMs, dropRate});
+    }
+
+    /**
+     * @brief setThinkJitter() makes every prompt take a random extra time
+     * @param jitterMs takes long, the most a prompt takes over thinkMs
+     */
+    public void setThinkJitter(long jitterMs) {
+        this.thinkJitterMs = jitterMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @brief count() returns how many protocol messages with opcode were sent
+     * @param opcode takes int
+     * @return returns long
+     */
+    public long count(int opcode) {
+        AtomicLong n = byOpcode.get(opcode);
+        return n == null ? 0 : n.get();
+    }
+
+    private void send(Endpoint from, ProjectLib.Message msg) {
+        if (!from.alive) {
+            return;
+        }
+        messages.incrementAndGet();
+        bytes.addAndGet(msg.body.length);
+        inspect(from.addr, msg.addr, msg.body);
+        double[] link = links.get(from.addr + "->" + msg.addr);
+        long delay = link != null ? (long)link[0] : delayMs;
+        double drop = link != null ? link[1] : dropRate;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if (drop > 0 && rnd.nextDouble() < drop) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (jitterMs > 0) {
+            delay += rnd.nextLong(jitterMs + 1);
+        }
+        String to = msg.addr;
+        ProjectLib.Message delivered = new ProjectLib.Message(from.addr, msg.body);
+        ScheduledExecutorService deliverer = deliverers.computeIfAbsent(to, d -> Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "deliver-" + d);
+            t.setDaemon(true);
+            return t;
+        }));
+        deliverer.schedule(() -> {
+            Endpoint dest = endpoints.get(to);
+            if (dest == null || !from.alive) {
+                dropped.incrementAndGet();
+                return;
+            }
+            dest.deliver(delivered);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //counts the protocol messages in a body without decoding images
+    private void inspect(String from, String to, byte[] body) {
+        if (body.length == 0) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(body);
+        if (body[0] != BATCH) {
+            record(from, to, buf);
+            return;
+        }
+        buf.get();
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int len = buf.getInt();
+            int next = buf.position() + len;
+            record(from, to, buf);
+            buf.position(next);
+        }
+    }
+
+    private void record(String from, String to, ByteBuffer buf) {
+        int opcode = buf.get();
+        byOpcode.computeIfAbsent(opcode, o -> new AtomicLong()).incrementAndGet();
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        int len = buf.getShort() & 0xFFFF;
+        String filename = null;
+        if (len != 0xFFFF) {
+            filename = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        }
+        l.onMessage(from, to, opcode, filename);
+    }
+
+    /**
+     * Endpoint is one node's view of the network
+     */
+    public class Endpoint implements transport {
+        final String addr;
+        volatile boolean alive = true;
+        private ProjectLib.MessageHandling handler;
+        //messages held until open(), or for getMessage() without a handler
+        private final LinkedBlockingQueue<ProjectLib.Message> queue = new LinkedBlockingQueue<ProjectLib.Message>();
+        private boolean opened = false;
+
+        Endpoint(String addr) {
+            this.addr = addr;
+        }
+
+        /**
+         * @brief open() starts delivering messages to handler, first the ones
+         * that arrived since attach(). With a null handler they are left for
+         * getMessage().
+         * @param handler takes ProjectLib.MessageHandling, or null
+         */
+        public void open(ProjectLib.MessageHandling handler) {
+            synchronized (this) {
+                this.handler = handler;
+                opened = true;
+            }
+            if (handler == null) {
+                return;
+            }
+            ProjectLib.Message msg;
+            while ((msg = queue.poll()) != null) {
+                handler.deliverMessage(msg);
+            }
+        }
+
+        void deliver(ProjectLib.Message msg) {
+            ProjectLib.MessageHandling h;
+            synchronized (this) {
+                h = opened ? handler : null;
+                if (h == null || !queue.isEmpty()) {
+                    queue.add(msg);
+                    return;
+                }
+            }
+            h.deliverMessage(msg);
+        }
+
+        public void sendMessage(ProjectLib.Message msg) {
+            send(this, msg);
+        }
+
+        public ProjectLib.Message getMessage() {
+            try {
+                return queue.take();
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        public synchronized void fsync() {
+            fsyncs.incrementAndGet();
+            if (fsyncMicros > 0) {
+                LockSupport.parkNanos(fsyncMicros * 1000);
+            }
+        }
+
+        public boolean askUser(byte[] img, String[] sources) {
+            prompts.incrementAndGet();
+            long think = thinkMs + (thinkJitterMs > 0 ? ThreadLocalRandom.current().nextLong(thinkJitterMs + 1) : 0);
+            if (think > 0) {
+                long end = System.nanoTime() + think * 1000000;
+                long left;
+                while ((left = end - System.nanoTime()) > 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        promptsCut.incrementAndGet();
+                        break;
+                    }
+                    LockSupport.parkNanos(left);
+                }
+            }
+            return ThreadLocalRandom.current().nextDouble() < yesRate;
+        }
+    }
+}
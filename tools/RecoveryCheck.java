@@ -0,0 +1,663 @@
+import java.io.*;
+import java.net.URL;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RecoveryCheck runs crash and restart scenarios against usernodes on a
+ * LoopbackNetwork and checks what the nodes answer afterwards. Each
+ * scenario plays the coordinator and the other usernodes by hand, so it
+ * can stop a collage at any step, flush or compact a node's log, restart
+ * the node from it and ask it about the collage.
+ *
+ *   peer.compacted   a node that committed a collage and restarted from a
+ *                    log compacted to nothing must not refuse it to a peer
+ *   onephase.ack     a node keeps a one-phase outcome through checkpoints
+ *                    and restarts until the coordinator acks it, and
+ *                    answers a re-sent request with it
+ *   onephase.reused  a one-phase request under the name of a collage whose
+ *                    outcome is kept, acked or not, is run afresh
+ *   refusal.ended    under presumed abort, a collage a node refused to a
+ *                    peer stays refused across a restart, and its refusal
+ *                    leaves the log once the PREPARE is voted down
+ *   name.reused      a new collage under the name of one that committed or
+ *                    aborted is voted on afresh
+ *   route.reused     a shard runs a routed collage under the name of one it
+ *                    finished, and answers a re-sent ROUTE without running
+ *                    it again
+ *   server.crashed   a shard that crashed while collages waited for votes
+ *                    aborts them on restart and frees their sources for
+ *                    the next collage
+ *   abort.late       an abort that comes after the commit of the same
+ *                    collage is not applied, and peers are still told commit
+ *   node.early       a restarted node handles a decision that arrived
+ *                    before init() only once its log is replayed
+ *   stage.failed     a collage whose image cannot be staged is aborted
+ *                    before any node gives up its sources for it
+ *   server.early     a restarted server handles a message that arrived
+ *                    before init() only once the collages in its log are
+ *                    known again (runs last, as it initializes Server)
+ *
+ * Every node runs in its own LoadGen.NodeLoader and every flush checkpoints
+ * its log. One line is printed per scenario, and the exit status is 1 if
+ * any failed.
+ *
+ * Build with make, then run from an empty scratch directory, for example:
+ *   mkdir -p run && cd run && java -cp ..:../../working:../../lib RecoveryCheck [filter]
+ * or use make check. Only scenarios whose name contains filter are run.
+ */
+public class RecoveryCheck {
+    private static final int PREPARE = 1;
+    private static final int COMMIT = 2;
+    private static final int ABORT = -1;
+    private static final int ACK = 3;
+    private static final int ONE_PHASE = 7;
+    private static final int ROUTE = 8;
+    private static final int ROUTE_DONE = 9;
+    private static final int PEER_QUERY = 10;
+    private static final int PEER_COMMIT = 11;
+    private static final int PEER_ABORT = 12;
+    private static final int PEER_UNKNOWN = 13;
+    //how long a scenario waits for a node to answer
+    private static final long WAIT = 5000;
+
+    static LoopbackNetwork net;
+
+    interface Scenario {
+        //returns why the scenario failed, or null if it passed
+        String run() throws Exception;
+    }
+
+    /**
+     * Peer is a coordinator or usernode played by the scenario: it keeps
+     * every message sent to it for expect()
+     */
+    static class Peer implements ProjectLib.MessageHandling {
+        final String addr;
+        final LoopbackNetwork.Endpoint ep;
+        final LinkedBlockingQueue<messageWrapper> inbox = new LinkedBlockingQueue<messageWrapper>();
+
+        Peer(String addr) {
+            this.addr = addr;
+            this.ep = net.attach(addr);
+            ep.open(this);
+        }
+
+        public boolean deliverMessage(ProjectLib.Message msg) {
+            try {
+                inbox.addAll(wireCodec.decodeAll(msg.body));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        void send(String to, messageWrapper msgwrap) throws IOException {
+            ep.sendMessage(new ProjectLib.Message(to, wireCodec.encode(msgwrap)));
+        }
+
+        /**
+         * @brief expect() waits for a message about filename with one of
+         * opcodes, skipping any other message
+         * @return returns the messageWrapper, or null if none came in WAIT ms
+         */
+        messageWrapper expect(String filename, int... opcodes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + WAIT;
+            long left;
+            while ((left = deadline - System.currentTimeMillis()) > 0) {
+                messageWrapper msgwrap = inbox.poll(left, TimeUnit.MILLISECONDS);
+                if (msgwrap == null || !filename.equals(msgwrap.filename)) {
+                    continue;
+                }
+                for (int opcode : opcodes) {
+                    if (msgwrap.opcode == opcode) {
+                        return msgwrap;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        System.setProperty("batch.window", "0");
+        System.setProperty("metrics.dump.ms", "0");
+        System.setProperty("trace", "false");
+        //every flush compacts the log down to the unfinished collages
+        System.setProperty("log.checkpoint.bytes", "1");
+        net = new LoopbackNetwork(0, 0, 0, 0, 0, 1);
+        LoadGen.net = net;
+        LoadGen.workingPath = new URL[] {wireCodec.class.getProtectionDomain().getCodeSource().getLocation()};
+
+        LinkedHashMap<String, Scenario> scenarios = new LinkedHashMap<String, Scenario>();
+        scenarios.put("peer.compacted", RecoveryCheck::peerQueryAfterCompaction);
+        scenarios.put("onephase.ack", RecoveryCheck::onePhaseUntilAcked);
+        scenarios.put("onephase.reused", RecoveryCheck::onePhaseReused);
+        scenarios.put("refusal.ended", RecoveryCheck::refusalEnded);
+        scenarios.put("name.reused", RecoveryCheck::nameReused);
+        scenarios.put("route.reused", RecoveryCheck::routeReused);
+        scenarios.put("server.crashed", RecoveryCheck::serverCrashed);
+        scenarios.put("abort.late", RecoveryCheck::abortAfterCommit);
+        scenarios.put("node.early", RecoveryCheck::nodeEarlyMessage);
+        scenarios.put("stage.failed", RecoveryCheck::stageFailed);
+        scenarios.put("server.early", RecoveryCheck::serverEarlyMessage);
+
+        int failed = 0;
+        for (Map.Entry<String, Scenario> e : scenarios.entrySet()) {
+            if (!e.getKey().contains(filter)) {
+                continue;
+            }
+            LoadGen.cleanup();
+            String failure;
+            try {
+                failure = e.getValue().run();
+            }
+            catch (Exception ex) {
+                failure = ex.toString();
+            }
+            System.out.println((failure == null ? "PASS  " : "FAIL  ") + e.getKey() + (failure == null ? "" : ": " + failure));
+            if (failure != null) {
+                failed++;
+            }
+        }
+        LoadGen.cleanup();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * @brief startNode() starts, or restarts from its log, usernode id
+     * @param id takes String node address
+     * @return returns the node's UserNode class
+     */
+    static Class<?> startNode(String id) throws Exception {
+        LoadGen.startNode(id);
+        return LoadGen.nodeClasses.get(LoadGen.nodeClasses.size() - 1);
+    }
+
+    /**
+     * @brief flushUntilEmpty() flushes a node's log, which checkpoints it,
+     * until it is empty or WAIT ms passed. END records are appended lazily
+     * after the message they follow, so the first flush may come too early.
+     * @param node takes the node's UserNode class
+     * @param log takes String name of its log file
+     * @return returns long size of the log after the last flush
+     */
+    static long flushUntilEmpty(Class<?> node, String log) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT;
+        long size;
+        do {
+            node.getMethod("logSync").invoke(null);
+            size = Files.size(Paths.get(log));
+            if (size == 0) {
+                break;
+            }
+            Thread.sleep(10);
+        } while (System.currentTimeMillis() < deadline);
+        return size;
+    }
+
+    static messageWrapper prepare(String node, String filename, String txn, String[] sources, String[] peers) {
+        return request(PREPARE, node, filename, txn, sources, peers);
+    }
+
+    static messageWrapper request(int opcode, String node, String filename, String txn, String[] sources, String[] peers) {
+        byte[] img = filename.getBytes();
+        messageWrapper msgwrap = new messageWrapper(opcode, img, node, sources, filename, txn);
+        msgwrap.hash = imageCache.hash(img);
+        msgwrap.size = img.length;
+        msgwrap.peers = peers;
+        return msgwrap;
+    }
+
+    //n0 votes commit on a collage with n1, applies the commit and acks it,
+    //and its END makes the next checkpoint leave an empty log. Restarted
+    //from that log, n0 does not remember the collage, so it has to answer
+    //a peer query with "unknown"; a refusal would let the peer abort a
+    //collage that committed.
+    static String peerQueryAfterCompaction() throws Exception {
+        Peer server = new Peer("Server");
+        Peer n1 = new Peer("n1");
+        LoadGen.touch("n0_a.jpg");
+        Class<?> node = startNode("n0");
+        String[] sources = {"n0_a.jpg"};
+        server.send("n0", prepare("n0", "c1.jpg", "t1", sources, new String[] {"n0", "n1"}));
+        if (server.expect("c1.jpg", COMMIT) == null) {
+            return "no commit vote";
+        }
+        server.send("n0", new messageWrapper(COMMIT, null, "n0", sources, "c1.jpg", "t1"));
+        if (server.expect("c1.jpg", ACK) == null) {
+            return "no ack";
+        }
+        long size = flushUntilEmpty(node, "userState-n0.log");
+        if (size != 0) {
+            return "log not compacted to nothing (" + size + " bytes)";
+        }
+        net.crash("n0");
+        startNode("n0");
+        n1.send("n0", new messageWrapper(PEER_QUERY, null, "n0", null, "c1.jpg", "t1"));
+        messageWrapper reply = n1.expect("c1.jpg", PEER_COMMIT, PEER_ABORT, PEER_UNKNOWN);
+        if (reply == null) {
+            return "no answer to the peer query";
+        }
+        return reply.opcode == PEER_UNKNOWN ? null : "answered " + (reply.opcode == PEER_ABORT ? "abort" : "commit");
+    }
+
+    //n2 commits a one-phase collage and deletes its source, and the
+    //coordinator does not ack the outcome. Its VOTE must survive the next
+    //checkpoint and a restart: the restarted node tells the coordinator
+    //again and answers a re-sent request with the commit, instead of
+    //running it again and aborting it because the source is gone. The ack
+    //then lets the next checkpoint drop it.
+    static String onePhaseUntilAcked() throws Exception {
+        Peer server = new Peer("Server");
+        LoadGen.touch("n2_a.jpg");
+        Class<?> node = startNode("n2");
+        String[] sources = {"n2_a.jpg"};
+        server.send("n2", request(ONE_PHASE, "n2", "c2.jpg", "t2", sources, null));
+        if (server.expect("c2.jpg", COMMIT, ABORT) == null) {
+            return "no outcome";
+        }
+        node.getMethod("logSync").invoke(null);
+        if (Files.size(Paths.get("userState-n2.log")) == 0) {
+            return "unacked outcome compacted away";
+        }
+        net.crash("n2");
+        node = startNode("n2");
+        messageWrapper outcome = server.expect("c2.jpg", COMMIT, ABORT);
+        if (outcome == null || outcome.opcode != COMMIT) {
+            return "restarted node " + (outcome == null ? "did not re-send the outcome" : "re-sent abort");
+        }
+        server.send("n2", request(ONE_PHASE, "n2", "c2.jpg", "t2", sources, null));
+        outcome = server.expect("c2.jpg", COMMIT, ABORT);
+        if (outcome == null || outcome.opcode != COMMIT) {
+            return "re-sent request answered " + (outcome == null ? "with nothing" : "with abort");
+        }
+        server.send("n2", new messageWrapper(ACK, null, "n2", null, "c2.jpg", "t2"));
+        long size = flushUntilEmpty(node, "userState-n2.log");
+        return size == 0 ? null : "acked outcome still in the log (" + size + " bytes)";
+    }
+
+    //n7 commits the one-phase collage c8 and keeps the outcome until the
+    //coordinator acks it, and in its outcomes after that. A new one-phase
+    //collage named c8, with another source and id, comes while the
+    //outcome is unacked and again after the ack. Each has to be run:
+    //answered with the kept commit, it would be published without asking
+    //the user, and its source would be left in place.
+    static String onePhaseReused() throws Exception {
+        Peer server = new Peer("Server");
+        LoadGen.touch("n7_a.jpg");
+        LoadGen.touch("n7_b.jpg");
+        LoadGen.touch("n7_c.jpg");
+        startNode("n7");
+        server.send("n7", request(ONE_PHASE, "n7", "c8.jpg", "t8", new String[] {"n7_a.jpg"}, null));
+        messageWrapper outcome = server.expect("c8.jpg", COMMIT, ABORT);
+        if (outcome == null || outcome.opcode != COMMIT) {
+            return "first c8 " + (outcome == null ? "has no outcome" : "aborted");
+        }
+        String failure = runsAgain(server, "t8b", "n7_b.jpg");
+        if (failure != null) {
+            return "while the first is unacked, " + failure;
+        }
+        server.send("n7", new messageWrapper(ACK, null, "n7", null, "c8.jpg", "t8"));
+        failure = runsAgain(server, "t8c", "n7_c.jpg");
+        return failure == null ? null : "after the ack, " + failure;
+    }
+
+    //sends c8 to n7 as attempt txn with source and checks that n7 commits
+    //that attempt and deletes the source
+    static String runsAgain(Peer server, String txn, String source) throws Exception {
+        server.send("n7", request(ONE_PHASE, "n7", "c8.jpg", txn, new String[] {source}, null));
+        messageWrapper outcome;
+        do {
+            outcome = server.expect("c8.jpg", COMMIT, ABORT);
+        } while (outcome != null && !txn.equals(outcome.txn));
+        if (outcome == null || outcome.opcode != COMMIT) {
+            return "c8 " + txn + " " + (outcome == null ? "got no outcome of its own" : "aborted");
+        }
+        return Files.exists(Paths.get(source)) ? source + " was not deleted" : null;
+    }
+
+    //n5 asks n4 about c4 before n4 got its PREPARE, so n4 refuses it and
+    //logs the refusal. After a restart the PREPARE must still be voted
+    //down. Under presumed abort no decision follows an abort vote, so the
+    //vote has to end the refusal, or it would stay in the log for good.
+    static String refusalEnded() throws Exception {
+        //read once, when each node's UserNode is first used
+        System.setProperty("presumed.abort", "true");
+        try {
+            Peer server = new Peer("Server");
+            Peer n5 = new Peer("n5");
+            LoadGen.touch("n4_a.jpg");
+            Class<?> node = startNode("n4");
+            n5.send("n4", new messageWrapper(PEER_QUERY, null, "n4", null, "c4.jpg", "t4"));
+            messageWrapper reply = n5.expect("c4.jpg", PEER_COMMIT, PEER_ABORT, PEER_UNKNOWN);
+            if (reply == null || reply.opcode != PEER_ABORT) {
+                return "peer query answered " + (reply == null ? "with nothing" : "opcode " + reply.opcode);
+            }
+            node.getMethod("logSync").invoke(null);
+            net.crash("n4");
+            node = startNode("n4");
+            server.send("n4", prepare("n4", "c4.jpg", "t4", new String[] {"n4_a.jpg"}, new String[] {"n4", "n5"}));
+            messageWrapper vote = server.expect("c4.jpg", COMMIT, ABORT);
+            if (vote == null || vote.opcode != ABORT) {
+                return "restarted node " + (vote == null ? "did not vote" : "voted commit on a refused collage");
+            }
+            long size = flushUntilEmpty(node, "userState-n4.log");
+            return size == 0 ? null : "refusal still in the log (" + size + " bytes)";
+        }
+        finally {
+            System.clearProperty("presumed.abort");
+        }
+    }
+
+    //n6 commits c6 and votes down c7, whose source is missing. New
+    //collages then take both names again with other sources. Each is a
+    //new attempt with an id of its own, so n6 has to vote on it, rather
+    //than take it for a re-sent PREPARE of the finished one and answer
+    //with nothing or with the old abort.
+    static String nameReused() throws Exception {
+        Peer server = new Peer("Server");
+        LoadGen.touch("n6_a.jpg");
+        LoadGen.touch("n6_b.jpg");
+        LoadGen.touch("n6_c.jpg");
+        startNode("n6");
+        String[] first = {"n6_a.jpg"};
+        server.send("n6", prepare("n6", "c6.jpg", "t6", first, null));
+        messageWrapper vote = server.expect("c6.jpg", COMMIT, ABORT);
+        if (vote == null || vote.opcode != COMMIT) {
+            return "first c6 " + (vote == null ? "not voted on" : "voted abort");
+        }
+        server.send("n6", new messageWrapper(COMMIT, null, "n6", first, "c6.jpg", "t6"));
+        if (server.expect("c6.jpg", ACK) == null) {
+            return "no ack for the first c6";
+        }
+        server.send("n6", prepare("n6", "c7.jpg", "t7", new String[] {"n6_gone.jpg"}, null));
+        vote = server.expect("c7.jpg", COMMIT, ABORT);
+        if (vote == null || vote.opcode != ABORT) {
+            return "first c7 " + (vote == null ? "not voted on" : "voted commit without its source");
+        }
+        server.send("n6", prepare("n6", "c6.jpg", "t6b", new String[] {"n6_b.jpg"}, null));
+        vote = server.expect("c6.jpg", COMMIT, ABORT);
+        if (vote == null || vote.opcode != COMMIT || !"t6b".equals(vote.txn)) {
+            return "second c6 " + (vote == null ? "not voted on" : "answered opcode " + vote.opcode + " for " + vote.txn);
+        }
+        server.send("n6", prepare("n6", "c7.jpg", "t7b", new String[] {"n6_c.jpg"}, null));
+        vote = server.expect("c7.jpg", COMMIT, ABORT);
+        if (vote == null || vote.opcode != COMMIT || !"t7b".equals(vote.txn)) {
+            return "second c7 " + (vote == null ? "not voted on" : "answered opcode " + vote.opcode + " for " + vote.txn);
+        }
+        return null;
+    }
+
+    //the scenario routes collage-c9 from n8's first source to the shard
+    //Server-1 and then, as a new request, from its second source. The
+    //shard has to run the second one rather than answer it as the one it
+    //finished, and has to answer a re-sent ROUTE of it without running it
+    //a third time.
+    static String routeReused() throws Exception {
+        Peer router = new Peer("Server");
+        LoadGen.touch("n8_a.jpg");
+        LoadGen.touch("n8_b.jpg");
+        startNode("n8");
+        LoadGen.startShard("Server-1");
+        if (!routed(router, "r1", "n8_a.jpg")) {
+            return "first request not finished";
+        }
+        if (!routed(router, "r2", "n8_b.jpg")) {
+            return "second request not finished";
+        }
+        if (Files.exists(Paths.get("n8_b.jpg"))) {
+            return "second request answered without running it";
+        }
+        LoadGen.touch("n8_b.jpg");
+        if (!routed(router, "r2", "n8_b.jpg")) {
+            return "re-sent request not answered";
+        }
+        return Files.exists(Paths.get("n8_b.jpg")) ? null : "re-sent request ran again";
+    }
+
+    //routes collage-c9 from source of n8 to Server-1 as request id, and
+    //returns true once the shard says it finished it
+    static boolean routed(Peer router, String id, String source) throws Exception {
+        byte[] img = source.getBytes();
+        router.send("Server-1", new messageWrapper(ROUTE, img, "Server-1", new String[] {"n8:" + source}, "collage-c9.jpg", id));
+        messageWrapper done;
+        do {
+            done = router.expect("collage-c9.jpg", ROUTE_DONE);
+        } while (done != null && !id.equals(done.txn));
+        return done != null;
+    }
+
+    //Server-2 runs two routed collages on the sources of n14 and n15 and
+    //crashes while their votes are on the way. The restarted shard finds
+    //them begun but undecided, so it aborts them and the nodes unlock
+    //their sources. A third collage under another name then uses all four
+    //sources and has to commit: the collage is published and every source
+    //deleted. The crashed shard keeps running in its loader, cut off, so it
+    //is given a vote allowance long enough that it never writes to the log
+    //again.
+    static String serverCrashed() throws Exception {
+        Peer router = new Peer("Server");
+        String[] files = {"n14_a.jpg", "n14_b.jpg", "n15_a.jpg", "n15_b.jpg"};
+        for (String file : files) {
+            LoadGen.touch(file);
+        }
+        startNode("n14");
+        startNode("n15");
+        net.setLink("n14", "Server-2", 500, 0);
+        net.setLink("n15", "Server-2", 500, 0);
+        try {
+            System.setProperty("vote.allowance", "600000");
+            try {
+                LoadGen.startShard("Server-2");
+            }
+            finally {
+                System.clearProperty("vote.allowance");
+            }
+            router.send("Server-2", route("collage-c15.jpg", "r15", "n14:n14_a.jpg", "n15:n15_a.jpg"));
+            router.send("Server-2", route("collage-c16.jpg", "r16", "n14:n14_b.jpg", "n15:n15_b.jpg"));
+            Thread.sleep(200);
+            net.crash("Server-2");
+            LoadGen.startShard("Server-2");
+        }
+        finally {
+            net.setLink("n14", "Server-2", 0, 0);
+            net.setLink("n15", "Server-2", 0, 0);
+        }
+        for (String file : files) {
+            if (!Files.exists(Paths.get(file))) {
+                return file + " deleted for a collage that did not commit";
+            }
+        }
+        router.send("Server-2", route("collage-c17.jpg", "r17", "n14:n14_a.jpg", "n14:n14_b.jpg", "n15:n15_a.jpg", "n15:n15_b.jpg"));
+        if (router.expect("collage-c17.jpg", ROUTE_DONE) == null) {
+            return "collage after the restart not finished";
+        }
+        if (!Files.exists(Paths.get("collage-c17.jpg"))) {
+            return "collage after the restart not published";
+        }
+        for (String file : files) {
+            if (Files.exists(Paths.get(file))) {
+                return file + " still there after the collage committed";
+            }
+        }
+        return null;
+    }
+
+    static messageWrapper route(String filename, String id, String... sources) {
+        return new messageWrapper(ROUTE, filename.getBytes(), "Server-2", sources, filename, id);
+    }
+
+    //n12 commits c14 and acks it, then gets an abort for the same attempt,
+    //as a coordinator that forgot the collage sends to a vote it re-sends.
+    //The abort must be dropped as a duplicate: applied, it would log an
+    //abort after the commit and tell peers in doubt to abort a collage
+    //that committed.
+    static String abortAfterCommit() throws Exception {
+        Peer server = new Peer("Server");
+        Peer n13 = new Peer("n13");
+        LoadGen.touch("n12_a.jpg");
+        startNode("n12");
+        String[] sources = {"n12_a.jpg"};
+        server.send("n12", prepare("n12", "c14.jpg", "t14", sources, new String[] {"n12", "n13"}));
+        if (server.expect("c14.jpg", COMMIT) == null) {
+            return "no commit vote";
+        }
+        server.send("n12", new messageWrapper(COMMIT, null, "n12", sources, "c14.jpg", "t14"));
+        if (server.expect("c14.jpg", ACK) == null) {
+            return "no ack";
+        }
+        server.send("n12", new messageWrapper(ABORT, null, "n12", sources, "c14.jpg", "t14"));
+        if (server.expect("c14.jpg", ACK) != null) {
+            return "late abort acked";
+        }
+        n13.send("n12", new messageWrapper(PEER_QUERY, null, "n12", null, "c14.jpg", "t14"));
+        messageWrapper reply = n13.expect("c14.jpg", PEER_COMMIT, PEER_ABORT, PEER_UNKNOWN);
+        if (reply == null) {
+            return "no answer to the peer query";
+        }
+        return reply.opcode == PEER_COMMIT ? null : "peer told " + (reply.opcode == PEER_ABORT ? "abort" : "unknown");
+    }
+
+    //n11 crashed after voting commit on c12, and the coordinator's abort
+    //reaches the restarted node before init(), as it can with ProjectLib,
+    //which is created first; a long log keeps init() reading for a while.
+    //The node has to hold the abort until recovery has locked c12's source
+    //again, then ack it and release the source for the next collage.
+    //Handled earlier, it finds nothing set up, or its unlock is undone by
+    //recovery and the source stays locked for good.
+    static String nodeEarlyMessage() throws Exception {
+        Peer server = new Peer("Server");
+        LoadGen.touch("n11_a.jpg");
+        String[] sources = {"n11_a.jpg"};
+        LoopbackNetwork.Endpoint ep = net.attach("n11");
+        serverLog log = new serverLog("userState-n11.log", ep, Long.MAX_VALUE);
+        for (int i = 0; i < 50000; i++) {
+            log.appendLazy(logRecord.vote("old" + i + ".jpg", "old" + i, sources, ABORT, PREPARE, "Server"));
+            log.appendLazy(logRecord.end("old" + i + ".jpg", "old" + i));
+        }
+        log.append(logRecord.vote("c12.jpg", "t12", sources, COMMIT, PREPARE, "Server"));
+        log.close();
+        server.send("n11", new messageWrapper(ABORT, null, "n11", sources, "c12.jpg", "t12"));
+        LoadGen.NodeLoader loader = new LoadGen.NodeLoader(LoadGen.workingPath, LoadGen.class.getClassLoader());
+        Class<?> node = loader.loadClass("UserNode");
+        Object handler = node.getConstructor(String.class).newInstance("n11");
+        Thread init = new Thread(() -> {
+            try {
+                node.getMethod("init", transport.class, String.class).invoke(null, ep, "userState-n11.log");
+            }
+            catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        });
+        init.setDaemon(true);
+        init.start();
+        //delivers the abort on this thread, while init() reads the log
+        ep.open((ProjectLib.MessageHandling)handler);
+        if (server.expect("c12.jpg", ACK) == null) {
+            return "abort not acked";
+        }
+        server.send("n11", prepare("n11", "c13.jpg", "t13", sources, null));
+        messageWrapper vote = server.expect("c13.jpg", COMMIT, ABORT);
+        if (vote == null || vote.opcode != COMMIT) {
+            return "next collage " + (vote == null ? "not voted on" : "voted down, source still locked");
+        }
+        return null;
+    }
+
+    //collages into a directory that does not exist cannot be staged: one
+    //on n9 and n10, and one-phase on n9 alone. The shard Server-1 has to
+    //abort each of them before asking the nodes, who would otherwise
+    //delete their sources for a collage that is never published.
+    static String stageFailed() throws Exception {
+        Peer router = new Peer("Server");
+        LoadGen.touch("n9_a.jpg");
+        LoadGen.touch("n10_a.jpg");
+        startNode("n9");
+        startNode("n10");
+        LoadGen.startShard("Server-1");
+        router.send("Server-1", new messageWrapper(ROUTE, "x".getBytes(), "Server-1",
+            new String[] {"n9:n9_a.jpg", "n10:n10_a.jpg"}, "collage-none/c10.jpg", "r1"));
+        if (router.expect("collage-none/c10.jpg", ROUTE_DONE) == null) {
+            return "collage on two nodes not finished";
+        }
+        router.send("Server-1", new messageWrapper(ROUTE, "x".getBytes(), "Server-1",
+            new String[] {"n9:n9_a.jpg"}, "collage-none/c11.jpg", "r2"));
+        if (router.expect("collage-none/c11.jpg", ROUTE_DONE) == null) {
+            return "one-phase collage not finished";
+        }
+        for (String source : new String[] {"n9_a.jpg", "n10_a.jpg"}) {
+            if (!Files.exists(Paths.get(source))) {
+                return source + " deleted for a collage that was not published";
+            }
+        }
+        return null;
+    }
+
+    //the server crashed after logging the commit of c3 on n3, and under
+    //presumed abort n3 keeps asking for the outcome. Its inquiries reach
+    //the restarted server from before init() until it answers, as they can
+    //with ProjectLib, which is created first; a long log of finished
+    //collages keeps init() reading for a while. The server must hold them
+    //until c3 is registered: answered from an empty txnMap it would presume
+    //abort for a collage the server is about to commit.
+    static String serverEarlyMessage() throws Exception {
+        //read once, when Server is first used below
+        System.setProperty("presumed.abort", "true");
+        try {
+            Peer n3 = new Peer("n3");
+            LoopbackNetwork.Endpoint ep = net.attach("Server");
+            String[] sources = {"n3:n3_a.jpg"};
+            serverLog log = new serverLog("serverState.log", ep, Long.MAX_VALUE);
+            for (int i = 0; i < 50000; i++) {
+                log.appendLazy(logRecord.begin("old" + i + ".jpg", "old" + i, sources, "collage-old" + i + ".jpg"));
+                log.appendLazy(logRecord.end("old" + i + ".jpg", "old" + i));
+            }
+            LoadGen.touch("collage-c3.jpg.stage");
+            log.append(logRecord.begin("collage-c3.jpg", "t3", sources, "collage-c3.jpg.stage"));
+            log.append(logRecord.decision("collage-c3.jpg", "t3", COMMIT));
+            log.close();
+            Thread init = new Thread(() -> {
+                try {
+                    Server.init(ep, "serverState.log");
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            init.setDaemon(true);
+            init.start();
+            //anything already queued is delivered on this thread
+            ep.open(new Server());
+            AtomicBoolean answered = new AtomicBoolean();
+            Thread inquiries = new Thread(() -> {
+                try {
+                    while (!answered.get()) {
+                        n3.send("Server", new messageWrapper(COMMIT, null, "n3", sources, "collage-c3.jpg", "t3"));
+                        Thread.sleep(1);
+                    }
+                }
+                catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            inquiries.setDaemon(true);
+            inquiries.start();
+            messageWrapper outcome = n3.expect("collage-c3.jpg", COMMIT, ABORT);
+            answered.set(true);
+            if (outcome == null || outcome.opcode != COMMIT) {
+                return "node told " + (outcome == null ? "nothing" : "abort");
+            }
+            n3.send("Server", new messageWrapper(ACK, null, "n3", null, "collage-c3.jpg", "t3"));
+            init.join(WAIT);
+            return init.isAlive() ? "recovery did not finish after the ack" : null;
+        }
+        finally {
+            System.clearProperty("presumed.abort");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * TraceTimeline merges the event traces written by the server and the
+ * usernodes (serverState.trace, userState.trace, see eventTrace) and prints
+ * the timeline of each collage: every event with its time since the
+ * collage's first event, who recorded it, the peer and the opcode.
+ *
+ * By default the 10 collages that took longest from first to last event are
+ * printed; -Dslowest=N changes how many, and -Dcollage=<name> prints just
+ * that collage. Event times are System.nanoTime() readings, which are
+ * comparable between processes on one Linux host; for traces from several
+ * hosts pass -Dclock=wall to align them on the wall-clock time recorded at
+ * the start of each trace instead (to about a millisecond). A rotated
+ * trace (serverState.trace.1) can be passed along with the current one.
+ *
+ * Build with make, then run:
+ *   java -cp . TraceTimeline serverState.trace* userState*.trace*
+ */
+public class TraceTimeline {
+    static class Event {
+        //nanoseconds on the merged clock
+        long t;
+        String at;
+        String ev;
+        String txn;
+        String peer;
+        int op;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: java TraceTimeline <trace file>...");
+            System.exit(1);
+        }
+        boolean wall = "wall".equals(System.getProperty("clock"));
+        String only = System.getProperty("collage");
+        int slowest = Integer.getInteger("slowest", 10);
+        HashMap<String, ArrayList<Event>> byTxn = new HashMap<String, ArrayList<Event>>();
+        long events = 0;
+        long dropped = 0;
+        for (String file : args) {
+            //offset from this trace's nanoTime to the merged clock
+            long offset = 0;
+            for (String line : Files.readAllLines(Paths.get(file))) {
+                Map<String, String> f = parse(line);
+                String ev = f.get("ev");
+                if (ev == null) {
+                    continue;
+                }
+                if (ev.equals("start")) {
+                    offset = wall ? Long.parseLong(f.get("wall")) * 1000000 - Long.parseLong(f.get("t")) : 0;
+                    continue;
+                }
+                if (ev.equals("dropped")) {
+                    dropped += Long.parseLong(f.get("n"));
+                    continue;
+                }
+                Event e = new Event();
+                e.t = Long.parseLong(f.get("t")) + offset;
+                e.at = f.get("at");
+                e.ev = ev;
+                e.txn = f.get("txn");
+                e.peer = f.get("peer");
+                e.op = Integer.parseInt(f.get("op"));
+                if (e.txn == null || (only != null && !only.equals(e.txn))) {
+                    continue;
+                }
+                byTxn.computeIfAbsent(e.txn, k -> new ArrayList<Event>()).add(e);
+                events++;
+            }
+        }
+        ArrayList<ArrayList<Event>> timelines = new ArrayList<ArrayList<Event>>(byTxn.values());
+        for (ArrayList<Event> timeline : timelines) {
+            timeline.sort(Comparator.comparingLong(e -> e.t));
+        }
+        timelines.sort(Comparator.comparingLong((ArrayList<Event> tl) -> span(tl)).reversed());
+        System.out.printf("%d collages, %d events, %d dropped by full trace buffers%n", timelines.size(), events, dropped);
+        int shown = only != null ? timelines.size() : Math.min(slowest, timelines.size());
+        for (int i = 0; i < shown; i++) {
+            ArrayList<Event> timeline = timelines.get(i);
+            long t0 = timeline.get(0).t;
+            System.out.printf("%n%s  %.3f ms  %s%n", timeline.get(0).txn, span(timeline) / 1e6, outcome(timeline));
+            for (Event e : timeline) {
+                boolean server = e.at != null && e.at.startsWith("Server");
+                boolean incoming = e.ev.equals("received")
+                    || (server ? e.ev.equals("vote") || e.ev.equals("ack") : e.ev.equals("decision"));
+                String dir = incoming ? "<-" : "->";
+                System.out.printf("  %10.3f  %-8s %-10s %s %-8s %s%n", (e.t - t0) / 1e6, e.at, e.ev,
+                    e.peer == null ? "  " : dir, e.peer == null ? "" : e.peer, opName(e.op));
+            }
+        }
+    }
+
+    static long span(ArrayList<Event> timeline) {
+        return timeline.get(timeline.size() - 1).t - timeline.get(0).t;
+    }
+
+    //the decision the coordinator shard recorded, if the trace has it
+    static String outcome(ArrayList<Event> timeline) {
+        for (Event e : timeline) {
+            if (e.ev.equals("decision") && e.at != null && e.at.startsWith("Server")) {
+                return e.op == 2 ? "committed" : "aborted";
+            }
+        }
+        return "undecided";
+    }
+
+    static String opName(int op) {
+        switch (op) {
+            case 1: return "PREPARE";
+            case 2: return "COMMIT";
+            case -1: return "ABORT";
+            case 3: return "ACK";
+            case 4: return "FETCH";
+            case 5: return "IMAGE";
+            case 7: return "ONE_PHASE";
+            case 10: return "PEER_QUERY";
+            case 11: return "PEER_COMMIT";
+            case 12: return "PEER_ABORT";
+            case 13: return "PEER_UNKNOWN";
+            default: return String.valueOf(op);
+        }
+    }
+
+    //parses one flat JSON object of string, number and null values
+    static Map<String, String> parse(String line) {
+        HashMap<String, String> fields = new HashMap<String, String>();
+        int i = line.indexOf('{') + 1;
+        if (i == 0) {
+            return fields;
+        }
+        while (i < line.length()) {
+            int k = line.indexOf('"', i);
+            if (k < 0) {
+                break;
+            }
+            int kEnd = line.indexOf('"', k + 1);
+            String key = line.substring(k + 1, kEnd);
+            i = line.indexOf(':', kEnd) + 1;
+            String value;
+            if (line.charAt(i) == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (line.charAt(i) != '"') {
+                    char c = line.charAt(i++);
+                    if (c == '\\') {
+                        c = line.charAt(i++);
+                        if (c == 'u') {
+                            c = (char)Integer.parseInt(line.substring(i, i + 4), 16);
+                            i += 4;
+                        }
+                    }
+                    sb.append(c);
+                }
+                value = sb.toString();
+                i++;
+            }
+            else {
+                int end = i;
+                while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '}') {
+                    end++;
+                }
+                value = line.substring(i, end).trim();
+                if (value.equals("null")) {
+                    value = null;
+                }
+                i = end;
+            }
+            fields.put(key, value);
+            i = line.indexOf(',', i);
+            if (i < 0) {
+                break;
+            }
+            i++;
+        }
+        return fields;
+    }
+}
@@ -1,164 +1,911 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.rmi.RemoteException;
 
 public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandling {
-    static ProjectLib PL;
+    static transport PL;
     private static final int PREPARE = 1;
     private static final int COMMIT = 2;
     private static final int ABORT = -1;
     private static final int ACK = 3;
+    private static final int FETCH = 4;
+    private static final int IMAGE = 5;
+    private static final int ONE_PHASE = 7;
+    //a collage handed by the router to the shard that owns it, and the
+    //shard's answer once the collage is finished
+    private static final int ROUTE = 8;
+    private static final int ROUTE_DONE = 9;
+    //number of recent collage hashes remembered in imageHolders
+    private static final int HOLDERS_SIZE = 256;
+    //number of routed collages a shard remembers, to answer re-sent ROUTEs
+    private static final int ROUTED_SIZE = 4096;
+    //timeout used for a node until its round trip time has been measured
     private static final long TIMEOUT = 6000;
+    private static final long MIN_RTO = 100;
+    //cap on a retransmission timeout as it backs off
+    static final long MAX_RTO = Long.getLong("rto.max", 60000);
+    //time a user is given to answer a PREPARE, on top of the round trip;
+    //prompts are not network round trips, so the estimators leave them out
+    static final long VOTE_ALLOWANCE = Long.getLong("vote.allowance", 2000);
+    //presumed abort: aborts are neither force-logged nor acked, and a collage
+    //missing from the log is taken to have aborted
+    static final boolean PRESUMED_ABORT = Boolean.getBoolean("presumed.abort");
+    //collages whose sources all live on one usernode let that node decide
+    static final boolean ONE_PHASE_ENABLED = Boolean.parseBoolean(System.getProperty("one.phase", "true"));
+    //the first abort vote is passed on at once to the nodes that have not
+    //voted, instead of after the decision is logged
+    static final boolean EARLY_ABORT = Boolean.parseBoolean(System.getProperty("abort.early", "true"));
 
-    //commitMap records the number of commmits for each collage
-    public static ConcurrentHashMap<String, Integer> commitMap = new ConcurrentHashMap<String, Integer>();
-    //abortMap records the number of aborts for each collage
-    public static ConcurrentHashMap<String, Integer>  abortMap = new ConcurrentHashMap<String, Integer>();
-    //ack
-    public static ConcurrentHashMap<String, Integer> ackMap = new ConcurrentHashMap<String, Integer>();
-    //sourceList maps collage filename to an array of all the sources that it uses and its correspond usernode
+    //address of this coordinator, "Server" unless it is one of several shards
+    static String self = "Server";
+    //which shard coordinates each collage, see shardMap. Only the shard that
+    //startCommit() is called on routes; a shard runs every collage routed to
+    //it, so collages in flight are unaffected when the map changes.
+    static volatile shardMap shards = shardMap.of(1);
+    //collages this router handed to another shard, by the id it gave the
+    //request, until the shard is done
+    static ConcurrentHashMap<String, CountDownLatch> routes = new ConcurrentHashMap<String, CountDownLatch>();
+    //ids of the collages routed to this shard, mapped to whether they are
+    //finished
+    static LinkedHashMap<String, Boolean> routed = new LinkedHashMap<String, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > ROUTED_SIZE;
+        }
+    };
+    //runs routed collages, since startCommit() blocks until it is done. A
+    //routed collage holds its thread while it waits in the scheduler, so
+    //at most scheduler.active + scheduler.queue of them are busy at once.
+    static ExecutorService coordinators = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "coordinator");
+        t.setDaemon(true);
+        return t;
+    });
+    //every attempt at a collage gets an id of its own: this coordinator's
+    //address, when it started and a count, so none repeats across restarts
+    static String epoch = Long.toString(System.currentTimeMillis(), 36);
+    static AtomicLong attempts = new AtomicLong();
+    //txnMap maps each in-flight collage to the votes and acks received for it
+    public static ConcurrentHashMap<String, txnStatus> txnMap = new ConcurrentHashMap<String, txnStatus>();
+    //sourceList maps each in-flight collage filename to an array of all the sources that it uses and its correspond usernode
     public static ConcurrentHashMap<String, String[]> sourceList = new ConcurrentHashMap<String, String[]>();
+    //imageHolders maps recent collage hashes to the usernodes already sent them
+    static LinkedHashMap<String, Set<String>> imageHolders = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > HOLDERS_SIZE;
+        }
+    };
+    //round trip estimates per usernode, from PREPARE to vote (which includes
+    //the user's answer, and only paces one-phase re-sends) and from decision
+    //to ack (the transport round trip the vote deadline is built on)
+    static ConcurrentHashMap<String, rttEstimator> voteRtt = new ConcurrentHashMap<String, rttEstimator>();
+    static ConcurrentHashMap<String, rttEstimator> ackRtt = new ConcurrentHashMap<String, rttEstimator>();
+    //coalesces messages to the same usernode into fewer ProjectLib messages
+    static messageBatcher batcher;
+    //bounds the collages running at once, in total and per usernode, and
+    //the collages waiting to run, see txnScheduler
+    static txnScheduler scheduler = new txnScheduler(Integer.getInteger("scheduler.active", 256),
+        Integer.getInteger("scheduler.node", 64), Integer.getInteger("scheduler.queue", 1024),
+        Long.getLong("scheduler.wait", TIMEOUT));
+    //index of user:source to in-flight collage, see admissionControl
+    static admissionControl admission = new admissionControl(admissionControl.parsePolicy(System.getProperty("conflict.policy")));
+    //latency of each phase of startCommit and per-node retransmit and
+    //timeout counts, published over JMX and dumped to serverState.metrics
+    static metrics stats = new metrics("Server");
+    static latencyHistogram scheduleTime = stats.histogram("schedule");
+    static latencyHistogram admitTime = stats.histogram("admission");
+    static latencyHistogram stageTime = stats.histogram("stage");
+    static latencyHistogram beginLogTime = stats.histogram("beginLog");
+    static latencyHistogram prepareTime = stats.histogram("prepareSend");
+    static latencyHistogram voteTime = stats.histogram("votes");
+    static latencyHistogram decisionLogTime = stats.histogram("decisionLog");
+    static latencyHistogram publishTime = stats.histogram("commitCollage");
+    static latencyHistogram ackTime = stats.histogram("acks");
+    static latencyHistogram onePhaseTime = stats.histogram("onePhase");
+    static latencyHistogram commitTime = stats.histogram("total");
+    static latencyHistogram deliverTime = stats.histogram("deliver");
+    static latencyHistogram fsyncTime = stats.histogram("fsync");
+    //per-collage protocol events, written to serverState.trace in the
+    //background; records nothing until init()
+    static eventTrace trace = new eventTrace();
+    //append-only write-ahead log shared by all collages
+    static serverLog log;
+    //opened by init() once the log is read and every collage left unfinished
+    //in it is registered; deliverMessage() and startCommit() wait for it
+    static CountDownLatch ready = new CountDownLatch(1);
     
 
     /**
-     * @brief serialize() serializes an object into a byte array so that it can 
-     * be sent to the server
-     * @param obj takes an Object
-     * @return outputs serialized object in form of byte array
+     * @brief serialize() encodes a messageWrapper into a byte array with
+     * wireCodec so that it can be sent over ProjectLib
+     * @param msgwrap takes a messageWrapper
+     * @return outputs encoded message in form of byte array
      */
-    public static byte[] serialize(Object obj) throws IOException{
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-        objectOutputStream.writeObject(obj);
-        byte[] output = outputStream.toByteArray();
-        return output;
+    public static byte[] serialize(messageWrapper msgwrap) throws IOException{
+        return wireCodec.encode(msgwrap);
     }
 
     /**
-     * @brief deserialize() deserializes a byte array into an object
+     * @brief deserialize() decodes a byte array produced by serialize()
      * @param input takes a byte[]
-     * @return returns object from byte[] input
+     * @return returns messageWrapper from byte[] input
+     */
+    public static messageWrapper deserialize(byte[] input) throws IOException {
+        return wireCodec.decode(input);
+    }
+
+    /**
+     * @brief deserializeAll() decodes a message body that may hold several
+     * messages packed together by a usernode's messageBatcher
+     * @param input takes a byte[]
+     * @return returns List of messageWrapper in the order they were sent
+     */
+    public static List<messageWrapper> deserializeAll(byte[] input) throws IOException {
+        return wireCodec.decodeAll(input);
+    }
+
+    /**
+     * @brief send() sends a message to a usernode through the batcher, which
+     * may coalesce it with other messages to the same node
+     * @param node takes String indicating the usernode
+     * @param msgwrap takes messageWrapper to send
      */
-    public static Object deserialize(byte[] input) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(input);
-        ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-        Object obj = objectInputStream.readObject();
-        return obj;
+    public static void send(String node, messageWrapper msgwrap) throws IOException {
+        batcher.send(node, msgwrap);
     }
 
     /**
      * deliverMessage() receive messages from the userNode and records responses
-     * in corresponding HashMap (commits, aborts, acks)
+     * in the txnStatus of the corresponding collage (commits, aborts, acks),
+     * waking up startCommit() if it is waiting on them. Messages that arrive
+     * before init() has registered the recovered collages wait for it, so a
+     * late vote is never taken for a collage the server does not know.
      * @param msg takes ProjectLib.message
      * @return returns boolean indicating that message was received correctly
      */
     public boolean deliverMessage( ProjectLib.Message msg) {
-        System.out.println("Server: Got message from " + msg.addr);
+        try {
+            ready.await();
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        long start = System.nanoTime();
         try { 
-            messageWrapper msgwrap = (messageWrapper)deserialize(msg.body);
-            int count;
-            switch(msgwrap.opcode) {
-                case COMMIT:
-                    commitMap.put(msgwrap.filename, commitMap.get(msgwrap.filename) + 1);
-                    break;
-                case ABORT:
-                    abortMap.put(msgwrap.filename, abortMap.get(msgwrap.filename) + 1);
-                    break;
-                case ACK:
-                    if (!ackMap.containsKey(msgwrap.filename)) {
-                        ackMap.put(msgwrap.filename, ackMap.get(msgwrap.filename) + 1);
-                    }
-                    break;
+            //a usernode may pack several votes and acks into one message
+            for (messageWrapper msgwrap : deserializeAll(msg.body)) {
+                handleMessage(msg.addr, msgwrap);
             }
         }
         catch(IOException e) {
             e.printStackTrace();
         }
-        catch(ClassNotFoundException e) {
-            e.printStackTrace();
-        }
+        deliverTime.since(start);
         return true;
     }
+
+    /**
+     * @brief handleMessage() records one vote, ack or image request from a
+     * userNode in the txnStatus of its collage
+     * @param node takes String indicating the usernode that sent it
+     * @param msgwrap takes messageWrapper
+     */
+    public static void handleMessage(String node, messageWrapper msgwrap) {
+        if (msgwrap.opcode == ROUTE) {
+            acceptRoute(node, msgwrap);
+            return;
+        }
+        if (msgwrap.opcode == ROUTE_DONE) {
+            CountDownLatch done = routes.get(msgwrap.txn);
+            if (done != null) {
+                done.countDown();
+            }
+            return;
+        }
+        txnStatus txn = txnMap.get(msgwrap.filename);
+        //a reply to an earlier attempt at a collage of the same name
+        if (txn != null && !txn.id.equals(msgwrap.txn)) {
+            txn = null;
+        }
+        int kind = msgwrap.opcode == ACK ? eventTrace.ACK
+            : msgwrap.opcode == COMMIT || msgwrap.opcode == ABORT ? eventTrace.VOTE : eventTrace.RECEIVED;
+        trace.record(txn == null ? eventTrace.RECEIVED : kind, msgwrap.filename, node, msgwrap.opcode);
+        //collage already finished, response is stale
+        if (txn == null) {
+            //under presumed abort a node that voted commit keeps asking until
+            //it hears the outcome; a collage the server no longer knows about
+            //either committed and was acked by everyone, or aborted. Any
+            //other late vote may be the outcome of a one-phase collage whose
+            //ack was lost, which the node re-sends until it is acked.
+            try {
+                if (PRESUMED_ABORT && msgwrap.opcode == COMMIT) {
+                    send(node, new messageWrapper(ABORT, null, node, msgwrap.sources, msgwrap.filename, msgwrap.txn));
+                }
+                else if (msgwrap.opcode == COMMIT || msgwrap.opcode == ABORT) {
+                    send(node, new messageWrapper(ACK, null, node, null, msgwrap.filename, msgwrap.txn));
+                }
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        switch(msgwrap.opcode) {
+            case COMMIT:
+                if (txn.recordCommit(node)) {
+                    sample(voteRtt, node, txn.prepareSent.get(node));
+                }
+                break;
+            case ABORT:
+                if (txn.recordAbort(node)) {
+                    sample(voteRtt, node, txn.prepareSent.get(node));
+                }
+                if (EARLY_ABORT && !txn.onePhase) {
+                    abortUnvoted(txn);
+                }
+                break;
+            case ACK:
+                //only decisions sent once give an unambiguous sample
+                if (txn.recordAck(node) && txn.decisionTries.getOrDefault(node, 0) == 1) {
+                    sample(ackRtt, node, txn.decisionSent.get(node));
+                }
+                break;
+            case FETCH:
+                //node does not have the collage, send it the chunk it asked for
+                sendImage(node, txn, msgwrap.offset);
+                break;
+        }
+    }
 	
     /**
-     * @brief 2 phase commit routine communicates with userNode to decide 
-     * whether or not to commit collage
+     * @brief startCommit() runs a collage on the shard that owns it: here,
+     * or by routing it to another shard and waiting until it is finished.
+     * Like a message, a collage that comes before init() is done waits.
      * @param filename takes String indicating name of collage
      * @param img takes byte[], a serialized form of the image
      * @param sources takes String[], list of usernodes and sources (user:source)
      */
     public void startCommit( String filename, byte[] img, String[] sources ) {
+        try {
+            ready.await();
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        String owner = shards.owner(filename);
+        String id = nextTxn();
+        if (owner.equals(self)) {
+            coordinate(id, filename, img, sources);
+        }
+        else {
+            route(owner, id, filename, img, sources);
+        }
+    }
+
+    /**
+     * @brief route() hands a collage to the shard that owns it and waits for
+     * the shard to finish it, re-sending it every TIMEOUT in case the
+     * request or the answer was lost. The shard runs it under the id given
+     * here, which re-sent requests share and no other request has.
+     * @param owner takes String address of the shard
+     * @param id takes String id of the request, see nextTxn()
+     * @param filename takes String indicating name of collage
+     * @param img takes byte[], a serialized form of the image
+     * @param sources takes String[], list of usernodes and sources (user:source)
+     */
+    public static void route(String owner, String id, String filename, byte[] img, String[] sources) {
+        CountDownLatch done = new CountDownLatch(1);
+        routes.put(id, done);
+        messageWrapper msgwrap = new messageWrapper(ROUTE, img, owner, sources, filename, id);
+        int tries = 0;
+        try {
+            do {
+                if (tries++ > 0) {
+                    stats.count("retransmits", owner);
+                    trace.record(eventTrace.RETRANSMIT, filename, owner, ROUTE);
+                }
+                send(owner, msgwrap);
+            } while (!done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        catch(IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        finally {
+            routes.remove(id, done);
+        }
+    }
+
+    /**
+     * @brief acceptRoute() runs a collage routed to this shard, or tells the
+     * router again that it is done if it already finished. Requests are
+     * told apart by the id the router gave them, so a re-sent ROUTE for a
+     * collage still running is ignored, while a new request for a collage
+     * of the same name runs.
+     * @param router takes String address of the shard that routed it
+     * @param msgwrap takes the ROUTE messageWrapper
+     */
+    public static void acceptRoute(String router, messageWrapper msgwrap) {
+        Boolean finished;
+        synchronized (routed) {
+            finished = routed.get(msgwrap.txn);
+            //a collage being recovered from the log is running already
+            txnStatus running = txnMap.get(msgwrap.filename);
+            if (finished == null && running != null && running.id.equals(msgwrap.txn)) {
+                finished = false;
+            }
+            if (finished == null) {
+                routed.put(msgwrap.txn, false);
+            }
+        }
+        if (finished == null) {
+            coordinators.submit(() -> {
+                coordinate(msgwrap.txn, msgwrap.filename, msgwrap.img, msgwrap.sources);
+                markRouted(msgwrap.txn);
+                routeDone(router, msgwrap);
+            });
+        }
+        else if (finished) {
+            routeDone(router, msgwrap);
+        }
+    }
+
+    //remembers that the routed collage with the given id is finished
+    static void markRouted(String id) {
+        synchronized (routed) {
+            routed.put(id, true);
+        }
+    }
+
+    static void routeDone(String router, messageWrapper route) {
+        try {
+            send(router, new messageWrapper(ROUTE_DONE, null, router, null, route.filename, route.txn));
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief nodesOf() returns the usernodes that hold sources of a collage
+     * @param sources takes String[], list of usernodes and sources (user:source)
+     * @return returns HashSet of usernode addresses
+     */
+    static HashSet<String> nodesOf(String[] sources) {
+        HashSet<String> nodes = new HashSet<String>();
+        for (String source : sources) {
+            nodes.add(source.substring(0, source.indexOf(':')));
+        }
+        return nodes;
+    }
+
+    /**
+     * @brief coordinate() runs a collage once its sources are free and the
+     * scheduler lets it, or aborts it if either wait fails. Admission comes
+     * first, so a collage waiting for its sources holds no scheduler slot.
+     * @param id takes String id of the attempt, see nextTxn()
+     * @param filename takes String indicating name of collage
+     * @param img takes byte[], a serialized form of the image
+     * @param sources takes String[], list of usernodes and sources (user:source)
+     */
+    public static void coordinate( String id, String filename, byte[] img, String[] sources ) {
+        HashSet<String> nodes = nodesOf(sources);
+        long start = System.nanoTime();
+        //a collage overlapping one in flight would only be aborted by the
+        //usernode lock check, so do not start it until its sources are free
+        boolean admitted = admission.admit(filename, sources, TIMEOUT);
+        start = admitTime.since(start);
+        if (!admitted) {
+            //counted rather than printed, it happens under every contended load
+            for (String node : nodes) {
+                stats.count("conflicts", node);
+            }
+            trace.record(eventTrace.DECISION, filename, null, ABORT);
+            return;
+        }
+        boolean scheduled = scheduler.acquire(nodes);
+        scheduleTime.since(start);
+        if (!scheduled) {
+            admission.release(filename, sources, false);
+            for (String node : nodes) {
+                stats.count("unscheduled", node);
+            }
+            trace.record(eventTrace.DECISION, filename, null, ABORT);
+            return;
+        }
+        try {
+            runCollage(id, filename, img, sources);
+        }
+        finally {
+            scheduler.release(nodes);
+        }
+    }
+
+    /**
+     * @brief 2 phase commit routine communicates with userNode to decide 
+     * whether or not to commit collage. The collage was admitted by
+     * coordinate(), and its sources are released when it is forgotten.
+     * @param id takes String id of the attempt, see nextTxn()
+     * @param filename takes String indicating name of collage
+     * @param img takes byte[], a serialized form of the image
+     * @param sources takes String[], list of usernodes and sources (user:source)
+     */
+    public static void runCollage( String id, String filename, byte[] img, String[] sources ) {
         HashMap<String, ArrayList<String>> sourceMap = new HashMap<String, ArrayList<String>>(); 
         messageWrapper msgwrap;
-        ProjectLib.Message msg;
         int decision = ABORT;
-        initMaps(filename);
+        long start = System.nanoTime();
+        long t = start;
         mapSources(sources, sourceMap, filename);
+        int numNodes = sourceMap.keySet().size();
+        txnStatus txn = initTxn(id, filename, sources, numNodes);
+        //larger images are streamed from the staging file, see imageSpool
+        txn.img = img.length <= imageSpool.CHUNK ? img : null;
+        txn.hash = imageCache.hash(img);
+        if (ONE_PHASE_ENABLED && numNodes == 1) {
+            onePhaseCommit(txn, sourceMap, img);
+            commitTime.since(start);
+            return;
+        }
 
-        //log state before sending out prepare////
-        state serverState = new state(filename, decision, sourceMap, ackMap, sourceList, img);
-        logState(serverState);
+        //stage the collage next to its final name, then log its sources and
+        //staging path before sending out prepare; the log fsync makes the
+        //staged image durable as well. Under presumed abort a collage that
+        //is not in the log aborted, so nothing needs to be durable until a
+        //commit decision is logged, and that fsync covers both.
+        String stage = stageCollage(img, filename, !PRESUMED_ABORT);
+        if (stage == null) {
+            abortUnstaged(txn);
+            return;
+        }
+        txn.image = txn.img == null ? mapCollage(stage) : null;
+        t = stageTime.since(t);
+        if (PRESUMED_ABORT) {
+            logStateLazy(logRecord.begin(filename, txn.id, sources, stage));
+        }
+        else {
+            logState(logRecord.begin(filename, txn.id, sources, stage));
+        }
+        t = beginLogTime.since(t);
         
-        //send collage to all usernodes and ask for vote        
-        int numNodes = sourceMap.keySet().size();
+        //send collage to all usernodes and ask for vote. Nodes that were
+        //already sent this image only get its hash. Every node learns the
+        //others, to ask them for the outcome if the decision is late.
+        String[] peers = sourceMap.keySet().toArray(new String[0]);
         for (String node : sourceMap.keySet()) {
             ArrayList<String> srcMap = sourceMap.get(node);
             String[] srcArr = Arrays.copyOf(srcMap.toArray(), srcMap.size(), String[].class);    
-            msgwrap = new messageWrapper(PREPARE, img, node, srcArr, filename);
+            byte[] body = markHolder(node, txn.hash) ? null : txn.img;
+            msgwrap = new messageWrapper(PREPARE, body, node, srcArr, filename, txn.id);
+            msgwrap.hash = txn.hash;
+            msgwrap.size = img.length;
+            msgwrap.peers = peers;
             try {
-                msg = new ProjectLib.Message(node, serialize(msgwrap));
-                PL.sendMessage(msg);
+                txn.prepareSent.put(node, System.currentTimeMillis());
+                trace.record(eventTrace.PREPARE, filename, node, PREPARE);
+                send(node, msgwrap);
             }
             catch(IOException e) {
                 e.printStackTrace();
             }
         }        
-        //wait for votes from user nodes
-        long time = System.currentTimeMillis();
-        decision = COMMIT;
-        while (commitMap.get(filename) < numNodes) {
-            //if wait time exceeds timeout value, then abort
-            if (System.currentTimeMillis() - time > TIMEOUT) {
-                decision = ABORT;
-                break;
+        t = prepareTime.since(t);
+        //wait for votes from user nodes, commit only if all of them vote to
+        //commit before the slowest node's adaptive deadline; a single abort
+        //ends the wait early. The deadline is extended for as long as a node
+        //keeps fetching chunks of a large image.
+        try {
+            long deadline = voteDeadline(sourceMap.keySet());
+            boolean all;
+            while (!(all = txn.awaitVotes(deadline)) && txn.streaming(deadline)) {
+                //a node is still fetching the image, wait another deadline
             }
-            //if at least one user aborts, then server decision is to abort
-            if (abortMap.get(filename) > 0) {
-                decision = ABORT;
-                break;
+            decision = all ? COMMIT : ABORT;
+        }
+        catch(InterruptedException e) {
+            decision = ABORT;
+        }
+        t = voteTime.since(t);
+        if (!txn.aborted) {
+            for (String node : sourceMap.keySet()) {
+                if (!txn.voted.contains(node)) {
+                    stats.count("voteTimeouts", node);
+                    trace.record(eventTrace.TIMEOUT, filename, node, PREPARE);
+                }
             }
         }
-        serverState = new state(filename, decision, sourceMap, ackMap, sourceList, img);
-        logState(serverState);
+        if (decision == COMMIT || !PRESUMED_ABORT) {
+            logState(logRecord.decision(filename, txn.id, decision));
+            t = decisionLogTime.since(t);
+        }
+        trace.record(eventTrace.DECISION, filename, null, decision);
         if (decision == COMMIT) {
-            commitCollage(img, filename);
-        }
-        //send decision to all userNodes
-        broadcastDecision(decision, filename, sourceMap);
-        //wait for acks from all userNodes
-        long time2 = System.currentTimeMillis();
-        //loops until all acknowledgements are received
-        while (ackMap.size() < numNodes) {
-            //if wait time exceeds timeout value, then resend server decision
-            if (System.currentTimeMillis() - time2 > TIMEOUT) { 
-                broadcastDecision(decision, filename, sourceMap);
-                time2 = System.currentTimeMillis();
+            commitCollage(stage, filename, false);
+        }
+        else {
+            discardCollage(stage);
+        }
+        t = publishTime.since(t);
+        //send decision to all userNodes and wait for their acks
+        finishTxn(txn, decision, sourceMap);
+        ackTime.since(t);
+        commitTime.since(start);
+    }
+
+    /**
+     * @brief onePhaseCommit() runs a collage whose sources all live on one
+     * usernode. The BEGIN_ONE_PHASE record is forced before the node is
+     * asked, since from then on the node may delete its sources. The node
+     * checks and locks its sources, asks the user, applies the outcome and
+     * replies with it, so there is a single round trip and no decision or
+     * ack message. The server keeps re-sending the request until it has the
+     * outcome, because the node decides and it cannot be aborted by timeout.
+     * @param txn takes txnStatus of the collage, with hash set
+     * @param sourceMap takes HashMap of the single node mapped to its sources
+     * @param img takes byte[], a serialized form of the image
+     */
+    public static void onePhaseCommit(txnStatus txn, HashMap<String, ArrayList<String>> sourceMap, byte[] img) {
+        txn.onePhase = true;
+        String stage = stageCollage(img, txn.filename, true);
+        if (stage == null) {
+            abortUnstaged(txn);
+            return;
+        }
+        txn.image = txn.img == null ? mapCollage(stage) : null;
+        logState(logRecord.beginOnePhase(txn.filename, txn.id, txn.sources, stage));
+        redriveOnePhase(txn, sourceMap, stage);
+    }
+
+    /**
+     * @brief redriveOnePhase() sends the one-phase request to the collage's
+     * node until it replies with the outcome, then records the outcome and
+     * publishes or discards the collage. Only a commit needs to be forced to
+     * the log; a lost abort is found again by asking the node.
+     * @param txn takes txnStatus of the collage, with image and hash set
+     * @param sourceMap takes HashMap of the single node mapped to its sources
+     * @param stage takes String path of the staging file
+     */
+    public static void redriveOnePhase(txnStatus txn, HashMap<String, ArrayList<String>> sourceMap, String stage) {
+        String node = sourceMap.keySet().iterator().next();
+        ArrayList<String> srcMap = sourceMap.get(node);
+        String[] srcArr = Arrays.copyOf(srcMap.toArray(), srcMap.size(), String[].class);
+        int tries = 0;
+        long start = System.nanoTime();
+        try {
+            while (txn.voted.isEmpty()) {
+                byte[] body = markHolder(node, txn.hash) ? null : txn.img;
+                messageWrapper msgwrap = new messageWrapper(ONE_PHASE, body, node, srcArr, txn.filename, txn.id);
+                msgwrap.hash = txn.hash;
+                msgwrap.size = txn.imageSize();
+                if (tries == 0) {
+                    txn.prepareSent.put(node, System.currentTimeMillis());
+                    trace.record(eventTrace.PREPARE, txn.filename, node, ONE_PHASE);
+                }
+                else {
+                    stats.count("retransmits", node);
+                    trace.record(eventTrace.RETRANSMIT, txn.filename, node, ONE_PHASE);
+                }
+                try {
+                    send(node, msgwrap);
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+                long timeout = estimator(voteRtt, node).backoff(tries++);
+                while (!txn.awaitVotes(timeout) && txn.voted.isEmpty() && txn.streaming(timeout)) {
+                    //the node is still fetching the image, do not re-send yet
+                }
             }
-        }        
+        }
+        catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+        onePhaseTime.since(start);
+        int decision = txn.aborted ? ABORT : COMMIT;
+        trace.record(eventTrace.DECISION, txn.filename, null, decision);
+        if (decision == COMMIT) {
+            logState(logRecord.decision(txn.filename, txn.id, COMMIT));
+        }
+        else {
+            logStateLazy(logRecord.decision(txn.filename, txn.id, ABORT));
+        }
+        endOnePhase(txn, stage, decision, false);
     }
-    
+
     /**
-     * @brief commitCollage() takes serialized image and filename and writes 
-     * collage data into a file using RandomAccessFile
+     * @brief endOnePhase() publishes or discards a one-phase collage whose
+     * outcome is in the log, acks the outcome to the node and forgets it.
+     * The node applied the outcome before replying and keeps it until this
+     * ack, so a request re-sent after a crash here is answered from it.
+     * @param txn takes txnStatus of the collage
+     * @param stage takes String path of the staging file
+     * @param decision takes int indicating abort or commit
+     * @param recovering takes boolean, true if the outcome was read back
+     * from the log, see commitCollage()
+     */
+    public static void endOnePhase(txnStatus txn, String stage, int decision, boolean recovering) {
+        if (decision == COMMIT) {
+            commitCollage(stage, txn.filename, recovering);
+        }
+        else {
+            discardCollage(stage);
+        }
+        String node = txn.sources[0].substring(0, txn.sources[0].indexOf(':'));
+        try {
+            send(node, new messageWrapper(ACK, null, node, null, txn.filename, txn.id));
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        logStateLazy(logRecord.end(txn.filename, txn.id));
+        forgetTxn(txn, decision);
+    }
+
+    /**
+     * @brief finishTxn() sends the decision and waits for acks from all
+     * userNodes. A node that has not acked within its adaptive timeout gets
+     * the decision again, with the timeout doubling on every retry; nodes
+     * that already acked are not sent it again. Under presumed abort an
+     * abort is sent once, only to nodes that did not vote abort themselves,
+     * and is not waited on.
+     * @param txn takes txnStatus of the collage
+     * @param decision takes int indicating abort or commit
+     * @param sourceMap takes HashMap of nodes mapped to their sources
+     */
+    public static void finishTxn(txnStatus txn, int decision, HashMap<String, ArrayList<String>> sourceMap) {
+        //nodes sent an early abort already have the decision
+        synchronized (txn) {
+            ArrayList<String> nodes = new ArrayList<String>(sourceMap.keySet());
+            nodes.removeAll(txn.decisionSent.keySet());
+            if (PRESUMED_ABORT && decision == ABORT) {
+                nodes.removeAll(txn.abortVoted);
+            }
+            broadcastDecision(decision, txn, sourceMap, nodes);
+        }
+        if (PRESUMED_ABORT && decision == ABORT) {
+            logStateLazy(logRecord.end(txn.filename, txn.id));
+            forgetTxn(txn, decision);
+            return;
+        }
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long next = Long.MAX_VALUE;
+                ArrayList<String> due = new ArrayList<String>();
+                for (String node : sourceMap.keySet()) {
+                    if (txn.acked.contains(node)) {
+                        continue;
+                    }
+                    long timeout = estimator(ackRtt, node).backoff(txn.decisionTries.get(node));
+                    long deadline = txn.decisionSent.get(node) + timeout;
+                    if (deadline <= now) {
+                        due.add(node);
+                    }
+                    else {
+                        next = Math.min(next, deadline);
+                    }
+                }
+                if (!due.isEmpty()) {
+                    for (String node : due) {
+                        stats.count("ackTimeouts", node);
+                        trace.record(eventTrace.TIMEOUT, txn.filename, node, decision);
+                    }
+                    broadcastDecision(decision, txn, sourceMap, due);
+                    continue;
+                }
+                //every node acked
+                if (next == Long.MAX_VALUE || txn.awaitAcks(next - now)) {
+                    break;
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+        logState(logRecord.end(txn.filename, txn.id));
+        forgetTxn(txn, decision);
+    }
+
+    /**
+     * @brief abortUnstaged() aborts a collage whose image could not be
+     * staged, before anything about it is logged or sent, so no node is
+     * asked to give up its sources for a collage that cannot be published
+     * @param txn takes txnStatus of the collage
+     */
+    public static void abortUnstaged(txnStatus txn) {
+        for (String node : nodesOf(txn.sources)) {
+            stats.count("stageFailures", node);
+        }
+        trace.record(eventTrace.DECISION, txn.filename, null, ABORT);
+        forgetTxn(txn, ABORT);
+    }
+
+    /**
+     * @brief forgetTxn() drops a finished collage from every in-memory table
+     * and releases its sources, so memory only holds collages in flight
+     * @param txn takes txnStatus of the collage
+     * @param decision takes int indicating abort or commit
+     */
+    public static void forgetTxn(txnStatus txn, int decision) {
+        txnMap.remove(txn.filename, txn);
+        sourceList.remove(txn.filename);
+        admission.release(txn.filename, txn.sources, decision == COMMIT);
+    }
+
+    /**
+     * @brief estimator() returns the round trip estimator of node, creating
+     * it on first use. Its timeout starts at TIMEOUT and backs off up to
+     * MAX_RTO
+     * @param rtts takes the map of estimators (voteRtt or ackRtt)
+     * @param node takes String indicating the usernode
+     * @return returns rttEstimator of node
+     */
+    public static rttEstimator estimator(ConcurrentHashMap<String, rttEstimator> rtts, String node) {
+        return rtts.computeIfAbsent(node, n -> new rttEstimator(TIMEOUT, MIN_RTO, MAX_RTO));
+    }
+
+    /**
+     * @brief sample() records the round trip of a message sent at sentAt
+     * @param rtts takes the map of estimators (voteRtt or ackRtt)
+     * @param node takes String indicating the usernode that replied
+     * @param sentAt takes Long send time in milliseconds, or null if unknown
+     */
+    public static void sample(ConcurrentHashMap<String, rttEstimator> rtts, String node, Long sentAt) {
+        if (sentAt != null) {
+            estimator(rtts, node).sample(System.currentTimeMillis() - sentAt);
+        }
+    }
+
+    /**
+     * @brief voteDeadline() returns how long to wait for votes: the time a
+     * user is given to answer, VOTE_ALLOWANCE, plus the largest transport
+     * timeout among the participants. The transport timeout comes from the
+     * decision to ack round trips, which involve no prompt, and is MIN_RTO
+     * for a node that has not acked a decision yet. Vote round trips are not
+     * used, since they include the time the user took to answer.
+     * @param nodes takes Collection of participating usernodes
+     * @return returns long timeout in milliseconds
+     */
+    public static long voteDeadline(Collection<String> nodes) {
+        long transport = MIN_RTO;
+        for (String node : nodes) {
+            rttEstimator rtt = estimator(ackRtt, node);
+            if (rtt.sampled()) {
+                transport = Math.max(transport, rtt.rto());
+            }
+        }
+        return VOTE_ALLOWANCE + transport;
+    }
+
+    /**
+     * @brief stageCollage() writes the collage once to a staging file in the
+     * same directory as filename and forces it to disk, so that publishing it
+     * later is a rename rather than a second write
      * @param img takes byte[], a serialized form of the image
      * @param filename takes String indicating name of collage
+     * @param force takes boolean, false to leave it to the next log fsync
+     * @return returns String path of the staging file, or null if it could
+     * not be written
+     */
+    public static String stageCollage(byte[] img, String filename, boolean force) {
+        String stage = filename + ".stage";
+        try (FileChannel channel = FileChannel.open(Paths.get(stage), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(img);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            if (force) {
+                channel.force(true);
+            }
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            discardCollage(stage);
+            return null;
+        }
+        return stage;
+    }
+
+    /**
+     * @brief commitCollage() publishes a staged collage under its final name
+     * with an atomic rename. Recovery may find the staging file gone with
+     * the collage in place, if it was published before the crash; that is
+     * the only case in which a missing staging file is not an error.
+     * @param stage takes String path of the staging file
+     * @param filename takes String indicating name of collage
+     * @param recovering takes boolean, true if the decision was read back
+     * from the log
+     */
+    public static void commitCollage(String stage, String filename, boolean recovering) {
+        try {
+            Path staged = Paths.get(stage);
+            Path published = Paths.get(filename);
+            if (recovering && !Files.exists(staged) && Files.exists(published)) {
+                return;
+            }
+            Files.move(staged, published, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief discardCollage() removes the staging file of an aborted collage
+     * @param stage takes String path of the staging file
+     */
+    public static void discardCollage(String stage) {
+        try {
+            Files.deleteIfExists(Paths.get(stage));
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief markHolder() records that node was sent the image with the given
+     * hash
+     * @param node takes String indicating the usernode
+     * @param hash takes String content address of the image
+     * @return returns true if node had already been sent that image
+     */
+    public static boolean markHolder(String node, String hash) {
+        synchronized (imageHolders) {
+            Set<String> holders = imageHolders.get(hash);
+            if (holders == null) {
+                holders = new HashSet<String>();
+                imageHolders.put(hash, holders);
+            }
+            return !holders.add(node);
+        }
+    }
+
+    /**
+     * @brief mapCollage() maps a staged collage so that it can be served in
+     * chunks without keeping it on the heap
+     * @param stage takes String path of the staging file
+     * @return returns imageSpool, or null if the file cannot be mapped
+     */
+    public static imageSpool mapCollage(String stage) {
+        try {
+            return imageSpool.open(Paths.get(stage));
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @brief sendImage() answers a FETCH by sending one chunk of the collage
+     * image of an in-flight collage to the usernode that asked for it
+     * @param node takes String indicating the usernode
+     * @param txn takes txnStatus of the collage
+     * @param offset takes int byte offset of the chunk
      */
-    public static void commitCollage(byte[] img, String filename) {
+    public static void sendImage(String node, txnStatus txn, int offset) {
+        imageSpool image = txn.image;
+        byte[] chunk = txn.img != null && offset == 0 ? txn.img : image == null ? null : image.chunk(offset);
+        if (chunk == null) {
+            return;
+        }
+        txn.lastFetch = System.currentTimeMillis();
+        messageWrapper msgwrap = new messageWrapper(IMAGE, chunk, node, null, txn.filename, txn.id);
+        msgwrap.hash = txn.hash;
+        msgwrap.size = txn.imageSize();
+        msgwrap.offset = offset;
         try {
-            RandomAccessFile raf = new RandomAccessFile(filename, "rw");
-            raf.write(img);
-            raf.close();
+            send(node, msgwrap);
         }
         catch(IOException e) {
             e.printStackTrace();
@@ -167,21 +914,25 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 
     /**
      * @brief broadcastDecision() sends out the server decision along with other
-     * metadata to all userNodes
+     * metadata to the given userNodes and records when each was sent
      * @param decision takes int indicating abort or commit
-     * @param filename takes String indicating name of collage
-     * @param sources takes HashMap of nodes mapped to their sources
+     * @param txn takes txnStatus of the collage
+     * @param sourceMap takes HashMap of nodes mapped to their sources
+     * @param nodes takes Collection of usernodes to send the decision to
      */
-    public static void broadcastDecision(int decision, String filename, HashMap<String, ArrayList<String>> sourceMap) {
+    public static void broadcastDecision(int decision, txnStatus txn, HashMap<String, ArrayList<String>> sourceMap, Collection<String> nodes) {
         messageWrapper msgwrap;
-        ProjectLib.Message broadcast;
-        for (String node : sourceMap.keySet()) {
+        for (String node : nodes) {
             ArrayList<String> srcMap = sourceMap.get(node);
             String[] srcArr = Arrays.copyOf(srcMap.toArray(), srcMap.size(), String[].class);    
             try {
-                msgwrap = new messageWrapper(decision, null, node, srcArr, filename);
-                broadcast = new ProjectLib.Message(node, serialize(msgwrap));
-                PL.sendMessage(broadcast);
+                msgwrap = new messageWrapper(decision, null, node, srcArr, txn.filename, txn.id);
+                txn.decisionSent.put(node, System.currentTimeMillis());
+                if (txn.decisionTries.merge(node, 1, Integer::sum) > 1) {
+                    stats.count("retransmits", node);
+                    trace.record(eventTrace.RETRANSMIT, txn.filename, node, decision);
+                }
+                send(node, msgwrap);
             }
             catch(IOException e) {
                 e.printStackTrace();
@@ -189,6 +940,38 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
         }
     }
 
+    /**
+     * @brief abortUnvoted() sends the abort to every node of a collage that
+     * has not voted yet, as soon as some node voted abort. The collage can
+     * only abort from then on, so it need not wait for the decision to be
+     * logged: a coordinator that crashes before logging it aborts the
+     * collage again on recovery. A node still asking its user can drop the
+     * prompt and its locks one round trip after the first no. finishTxn()
+     * does not send these nodes the decision a second time.
+     * @param txn takes txnStatus of the collage
+     */
+    public static void abortUnvoted(txnStatus txn) {
+        HashMap<String, ArrayList<String>> sourceMap = new HashMap<String, ArrayList<String>>();
+        for (String source : txn.sources) {
+            String[] src = source.split(":");
+            sourceMap.computeIfAbsent(src[0], n -> new ArrayList<String>()).add(src[1]);
+        }
+        synchronized (txn) {
+            ArrayList<String> nodes = new ArrayList<String>();
+            for (String node : sourceMap.keySet()) {
+                if (!txn.voted.contains(node) && !txn.decisionSent.containsKey(node)) {
+                    nodes.add(node);
+                }
+            }
+            if (!nodes.isEmpty()) {
+                for (String node : nodes) {
+                    stats.count("earlyAborts", node);
+                }
+                broadcastDecision(ABORT, txn, sourceMap, nodes);
+            }
+        }
+    }
+
     /**
      * mapSources() parses the String array of usernodes and sources and adds it
      * to a hashmap mapping usernodes to its respective sources. It also maps 
@@ -197,7 +980,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
      * @param sourceMap takes empty HashMap of Strings to ArrayList<String>
      * @param file takes String indicating name of collage
      */
-    public void mapSources(String[] sources, HashMap<String, ArrayList<String>> sourceMap, String file) {
+    public static void mapSources(String[] sources, HashMap<String, ArrayList<String>> sourceMap, String file) {
         sourceList.put(file, sources);
         for (String source : sources) {
             String src[] = source.split(":");
@@ -217,30 +1000,37 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     }
 
     /**
-     * initMaps() initializes HashMaps that record the number of commits, aborts,
-     * and acknowledgements for each collage to 0
+     * @brief nextTxn() returns the id of a new attempt at a collage. A
+     * routed collage runs under the id its router gave it.
+     * @return returns String id, unique to this coordinator
+     */
+    public static String nextTxn() {
+        return self + "." + epoch + "." + attempts.incrementAndGet();
+    }
+
+    /**
+     * initTxn() registers a fresh txnStatus that records the commits, aborts,
+     * and acknowledgements for the collage
+     * @param id takes String id of the attempt, see nextTxn()
      * @param collageName takes String
+     * @param sources takes String[] of user:source
+     * @param numNodes takes int, number of usernodes taking part
+     * @return returns the registered txnStatus
      */
-    public void initMaps(String collageName) {
-        commitMap.put(collageName, 0);
-        abortMap.put(collageName, 0);
-        ackMap.put(collageName, 0);
+    public static txnStatus initTxn(String id, String collageName, String[] sources, int numNodes) {
+        txnStatus txn = new txnStatus(id, collageName, sources, numNodes);
+        txnMap.put(collageName, txn);
+        return txn;
     }
     
     /**
-     * logState() takes an object containing metadata and logs it using an 
-     * objectOutputStream, fileOutputStream, and the Project lib function fsync().
-     * @param obj takes Object containing metadata to be logged
+     * logState() appends a record to the write-ahead log and returns once it
+     * is durable. Records logged by concurrent collages share one fsync().
+     * @param rec takes logRecord to be logged
      */
-    public void logState(Object state) {
+    public static void logState(logRecord rec) {
         try {
-            RandomAccessFile raf = new RandomAccessFile("serverState.log", "rw");
-            FileOutputStream fileOutputStr = new FileOutputStream(raf.getFD());
-            ObjectOutputStream objOutputStr = new ObjectOutputStream(fileOutputStr);
-            objOutputStr.writeObject(state);
-            objOutputStr.close();
-            raf.close();
-            PL.fsync();
+            log.append(rec);
         }
         catch(IOException e) {
             e.printStackTrace();
@@ -248,54 +1038,223 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     }
 
     /**
-     * @brief recovery routine when userNode crashes. Reads log and resumes 
-     * from where it crashed based on the phase it was in.
+     * logStateLazy() appends a record to the write-ahead log without waiting;
+     * it becomes durable with the next logState() of any collage
+     * @param rec takes logRecord to be logged
      */
-    public static void recoverState() {
+    public static void logStateLazy(logRecord rec) {
         try {
-            FileInputStream fileInputStr = new FileInputStream("serverState.log");
-            ObjectInputStream objInputStr = new ObjectInputStream(fileInputStr);
-            state serverState = (state)objInputStr.readObject();
-            //information from before crash is retreived from log file
-            String filename = serverState.filename;
-            int decision = serverState.decision;
-            byte[] img = serverState.img;
-            HashMap<String, ArrayList<String>> sourceMap = serverState.sourceMap;
-            ackMap = serverState.ackMap;    
-            int numNodes = sourceMap.keySet().size();    
-            if (decision == COMMIT) {
-                commitCollage(img, filename);
-            }
-            //send decision to all userNodes
-            broadcastDecision(decision, filename, sourceMap);
-            //wait for acks from all userNode
-            long time2 = System.currentTimeMillis();
-            while (ackMap.size() < numNodes) {
-                //if waiting time exceeds 6 seconds, resend decision
-                if (System.currentTimeMillis() - time2 > TIMEOUT) {
-                    broadcastDecision(decision, filename, sourceMap);
-                    time2 = System.currentTimeMillis();
-                }
-            }    
+            log.appendLazy(rec);
         }
-        catch (FileNotFoundException e) {
+        catch(IOException e) {
             e.printStackTrace();
         }
-        catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * @brief unfinishedTxns() replays log records and returns every collage
+     * that has a BEGIN record but no END record
+     * @param records takes List of logRecord in log order
+     * @return returns LinkedHashMap of the id of each attempt to its BEGIN
+     * record and, if one was logged, its DECISION record
+     */
+    public static LinkedHashMap<String, logRecord[]> unfinishedTxns(List<logRecord> records) {
+        LinkedHashMap<String, logRecord[]> table = new LinkedHashMap<String, logRecord[]>();
+        for (logRecord rec : records) {
+            switch (rec.type) {
+                case logRecord.BEGIN:
+                case logRecord.BEGIN_ONE_PHASE:
+                    table.put(rec.txn, new logRecord[] {rec, null});
+                    break;
+                case logRecord.DECISION:
+                    logRecord[] entry = table.get(rec.txn);
+                    if (entry != null) {
+                        entry[1] = rec;
+                    }
+                    break;
+                case logRecord.END:
+                    table.remove(rec.txn);
+                    break;
+            }
         }
-        catch (ClassNotFoundException e) {
-            e.printStackTrace();
+        return table;
+    }
+
+    /**
+     * @brief recovery routine when the server crashes. Rebuilds the table of
+     * unfinished collages from the log and registers every one of them, in
+     * txnMap, with the admission index and as routed here, before returning.
+     * Finishing them takes round trips to the usernodes, so that is left to
+     * the returned tasks, which finishRecovery() runs in parallel once
+     * messages are let in.
+     * @return returns List of Runnable, one per unfinished collage
+     */
+    public static List<Runnable> recoverState() {
+        LinkedHashMap<String, logRecord[]> table = unfinishedTxns(log.getRecovered());
+        ArrayList<Runnable> redrives = new ArrayList<Runnable>();
+        for (logRecord[] entry : table.values()) {
+            //a router that routed this collage here may ask for it again
+            synchronized (routed) {
+                routed.put(entry[0].txn, false);
+            }
+            HashMap<String, ArrayList<String>> sourceMap = new HashMap<String, ArrayList<String>>();
+            txnStatus txn = restoreTxn(entry[0], sourceMap);
+            redrives.add(() -> {
+                recoverTxn(txn, sourceMap, entry[0], entry[1]);
+                markRouted(entry[0].txn);
+            });
+        }
+        return redrives;
+    }
+
+    /**
+     * @brief finishRecovery() runs the tasks returned by recoverState() each
+     * on its own thread, so recovery takes as long as the slowest participant
+     * rather than the sum of all collages, and waits for all of them
+     * @param redrives takes List of Runnable
+     */
+    public static void finishRecovery(List<Runnable> redrives) {
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (Runnable redrive : redrives) {
+            Thread worker = new Thread(redrive);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @brief restoreTxn() registers one collage found unfinished in the log:
+     * its sources are claimed so new collages do not overlap it, and its
+     * txnStatus is put in txnMap so votes and acks for it are recorded
+     * @param beginRec takes the BEGIN logRecord of the collage
+     * @param sourceMap takes HashMap that is filled with its sources per node
+     * @return returns the registered txnStatus
+     */
+    public static txnStatus restoreTxn(logRecord beginRec, HashMap<String, ArrayList<String>> sourceMap) {
+        String filename = beginRec.filename;
+        mapSources(beginRec.sources, sourceMap, filename);
+        admission.admit(filename, beginRec.sources, 0);
+        txnStatus txn = initTxn(beginRec.txn, filename, beginRec.sources, sourceMap.keySet().size());
+        txn.onePhase = beginRec.type == logRecord.BEGIN_ONE_PHASE;
+        return txn;
+    }
+
+    /**
+     * @brief recoverTxn() finishes one collage registered by restoreTxn().
+     * A collage that reached a decision has it re-broadcast; one that crashed
+     * before deciding is aborted, since no node can have committed it.
+     * Under presumed abort only commits are in the log with a decision, and
+     * the abort of an undecided collage is not logged or acked.
+     * @param txn takes the txnStatus of the collage
+     * @param sourceMap takes HashMap of its sources per node
+     * @param beginRec takes the BEGIN logRecord of the collage
+     * @param decisionRec takes the DECISION logRecord, or null if none
+     */
+    public static void recoverTxn(txnStatus txn, HashMap<String, ArrayList<String>> sourceMap, logRecord beginRec, logRecord decisionRec) {
+        String filename = beginRec.filename;
+        //the node of an undecided one-phase collage may already have applied
+        //it, so ask it again for the outcome instead of aborting
+        if (txn.onePhase) {
+            if (decisionRec == null) {
+                txn.image = mapCollage(beginRec.stage);
+                if (txn.image != null) {
+                    txn.hash = txn.image.hash();
+                    txn.img = txn.image.inline();
+                    redriveOnePhase(txn, sourceMap, beginRec.stage);
+                    return;
+                }
+            }
+            else {
+                endOnePhase(txn, beginRec.stage, decisionRec.decision, true);
+                return;
+            }
+        }
+        int decision = ABORT;
+        if (decisionRec != null) {
+            decision = decisionRec.decision;
+        }
+        //under presumed abort the missing decision already means abort
+        else if (!PRESUMED_ABORT) {
+            logState(logRecord.decision(filename, txn.id, ABORT));
+        }
+        trace.record(eventTrace.DECISION, filename, null, decision);
+        if (decision == COMMIT) {
+            commitCollage(beginRec.stage, filename, true);
         }
+        else {
+            discardCollage(beginRec.stage);
+        }
+        //send decision to all userNodes and wait for their acks
+        finishTxn(txn, decision, sourceMap);
+    }
+
+    /**
+     * @brief init() sets up the server on top of PL: the batcher, the log at
+     * logPath, its metrics (dumped next to the log every -Dmetrics.dump.ms,
+     * 0 for never), its event trace (next to the log unless -Dtrace=false),
+     * and recovery of any collages left unfinished in it
+     * @param tp takes transport to send, receive and fsync with
+     * @param logPath takes String, name of the log file
+     */
+    public static void init(transport tp, String logPath) throws IOException {
+        init(tp, "Server", logPath);
+    }
+
+    /**
+     * @brief init() sets up coordinator shard addr on top of PL, see above.
+     * Collages are routed across the first -Dshards shards (1 by default).
+     * @param tp takes transport to send, receive and fsync with
+     * @param addr takes String address of this shard
+     * @param logPath takes String, name of the log file of this shard
+     */
+    public static void init(transport tp, String addr, String logPath) throws IOException {
+        self = addr;
+        shards = shardMap.of(Integer.getInteger("shards", 1));
+        PL = tp;
+        batcher = new messageBatcher(PL, Long.getLong("batch.window", 2), Integer.getInteger("batch.bytes", 64 << 10));
+        log = new serverLog(logPath, PL);
+        log.fsyncTime = fsyncTime;
+        String base = logPath.replaceFirst("\\.log$", "");
+        stats.register(self.equals("Server") ? null : "shard=" + self);
+        stats.startDump(base + ".metrics", Long.getLong("metrics.dump.ms", 10000));
+        if (Boolean.parseBoolean(System.getProperty("trace", "true"))) {
+            trace = new eventTrace(base + ".trace", self, Integer.getInteger("trace.buffer", 1 << 16));
+        }
+        //every collage left unfinished is known before any message is
+        //handled, and only then finished on threads of its own
+        List<Runnable> redrives = recoverState();
+        ready.countDown();
+        finishRecovery(redrives);
+        log.clearRecovered();
+    }
+
+    /**
+     * @brief setShards() routes new collages across the first count shards.
+     * Collages in flight finish on the shard that began them, and each
+     * shard recovers the collages in its own log, so nothing is lost.
+     * @param count takes int number of shards
+     */
+    public static void setShards(int count) {
+        shards = shardMap.of(count);
     }
 
     public static void main ( String args[] ) throws Exception {
-        if (args.length != 1) throw new Exception("Need 1 arg: <port>");
+        if (args.length != 1 && args.length != 2) throw new Exception("Need 1 or 2 args: <port> [<shard address>]");
         Server srv = new Server();
-        PL = new ProjectLib( Integer.parseInt(args[0]), srv, srv);
-        File file = new File("serverState.log");
-        if (file.exists()) {
-            recoverState();
+        if (args.length == 1) {
+            init(new projectLibTransport(new ProjectLib( Integer.parseInt(args[0]), srv, srv)), "serverState.log");
+        }
+        else {
+            //an additional shard; collages reach it only through routing
+            init(new projectLibTransport(new ProjectLib( Integer.parseInt(args[0]), args[1], srv)), args[1], "serverState-" + args[1] + ".log");
         }
         // main loop
         while (true) {
@@ -1,61 +1,196 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.rmi.RemoteException;
 
 public class UserNode implements ProjectLib.MessageHandling {
-    static ProjectLib PL;
+    static transport PL;
     public final String myId;
     private static final int PREPARE = 1;
     private static final int COMMIT = 2;
     private static final int ABORT = -1;
     private static final int ACK = 3;
-    //lockList keeps track of files that are locked
-    public static LinkedList<String> lockList = new LinkedList<String>();
+    private static final int FETCH = 4;
+    private static final int IMAGE = 5;
+    private static final int ONE_PHASE = 7;
+    private static final int PEER_QUERY = 10;
+    private static final int PEER_COMMIT = 11;
+    private static final int PEER_ABORT = 12;
+    private static final int PEER_UNKNOWN = 13;
+    //number of outcomes remembered for re-sent requests and peer queries
+    private static final int OUTCOMES_SIZE = 1 << 16;
+    //presumed abort: aborts are not acked, a node that votes abort forgets
+    //the collage at once, and a node that voted commit asks again every
+    //INQUIRY milliseconds until it hears the outcome
+    static final boolean PRESUMED_ABORT = Boolean.getBoolean("presumed.abort");
+    private static final long INQUIRY = 3000;
+    //cooperative termination: a node that voted commit and hears nothing
+    //from the coordinator asks the other usernodes of the collage for the
+    //outcome, after the time decisions from that coordinator usually take
+    static final boolean TERMINATION = Boolean.parseBoolean(System.getProperty("termination", "true"));
+    private static final long MIN_QUERY = 500;
+    //a fetch that made no progress for FETCH_RETRY milliseconds asks for
+    //its outstanding chunks again
+    private static final long FETCH_RETRY = 500;
+    //number of fetched images too large for the cache kept in spool files
+    private static final int SPOOLS_SIZE = 16;
+    //locks keeps track of which collage holds a lock on each source
+    public static lockManager locks = new lockManager();
+    //names of the files in the node's directory, so checking and deleting
+    //sources needs no metadata calls; set up by init()
+    static sourceIndex files;
+    //recently received collages, so a PREPARE can carry just the hash
+    public static imageCache cache = new imageCache(64, 256L << 20);
+    //fetched images larger than a chunk, in memory-mapped spool files
+    //instead of the cache, by hash; the least recently used file is deleted
+    static LinkedHashMap<String, imageSpool> spools = new LinkedHashMap<String, imageSpool>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, imageSpool> eldest) {
+            if (size() > SPOOLS_SIZE) {
+                eldest.getValue().delete();
+                return true;
+            }
+            return false;
+        }
+    };
+    //coalesces votes and acks to the server into fewer ProjectLib messages
+    static messageBatcher batcher;
+    //append-only participant log shared by all collages on this node
+    static serverLog log;
+    //collages that were sent PREPARE and have not been decided yet, by the
+    //id of the attempt, see messageWrapper
+    public static ConcurrentHashMap<String, participantTxn> txns = new ConcurrentHashMap<String, participantTxn>();
+    //PREPAREs run here so a user prompt never holds up delivery of decisions
+    public static ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "prepare-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    //outcomes of recent collages, so a one-phase request the server re-sends
+    //is answered again without asking the user twice, and a peer asking
+    //about a collage gets its decision. Collages are known by the id of the
+    //attempt, so a later collage of the same name is not taken for a
+    //duplicate.
+    static LinkedHashMap<String, Integer> outcomes = new LinkedHashMap<String, Integer>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            if (size() > OUTCOMES_SIZE) {
+                forgotten = true;
+                return true;
+            }
+            return false;
+        }
+    };
+    //outcomes of one-phase collages the coordinator has not confirmed yet,
+    //as the message that tells it, by the id of the attempt; they stay in
+    //the log and here, out of reach of checkpoints and of the outcomes LRU,
+    //until it acks them
+    static ConcurrentHashMap<String, messageWrapper> unconfirmed = new ConcurrentHashMap<String, messageWrapper>();
+    //set once this node may have forgotten a collage it voted on, after it
+    //dropped an outcome or restarted from its log; from then on it cannot
+    //tell a peer that it never saw a collage
+    static boolean forgotten = false;
+    //time from a commit vote to the decision, per coordinator, which sets
+    //when a node in doubt starts asking its peers
+    static ConcurrentHashMap<String, rttEstimator> decisionRtt = new ConcurrentHashMap<String, rttEstimator>();
+    //re-sends commit votes of undecided collages under presumed abort
+    static ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inquiry-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    //latency of each step of a PREPARE and of applying decisions, and counts
+    //of re-sent requests and votes, published over JMX and dumped next to
+    //the participant log, see metrics
+    static metrics stats = new metrics("UserNode");
+    static latencyHistogram deliverTime = stats.histogram("deliver");
+    static latencyHistogram checkTime = stats.histogram("checkAndLock");
+    static latencyHistogram askTime = stats.histogram("askUser");
+    static latencyHistogram voteLogTime = stats.histogram("voteLog");
+    static latencyHistogram decisionTime = stats.histogram("decision");
+    static latencyHistogram ackSyncTime = stats.histogram("ackSync");
+    static latencyHistogram fsyncTime = stats.histogram("fsync");
+    //time sources stay locked by a collage, from lock to unlock
+    static latencyHistogram lockHeldTime = stats.histogram("lockHeld");
+    //address of this node, used to name its MBeans
+    static String nodeId;
+    //per-collage protocol events, written next to the participant log in
+    //the background; records nothing until init()
+    static eventTrace trace = new eventTrace();
+    //opened by init() once the node is set up and the collages in its log
+    //are resumed; deliverMessage() waits for it
+    static CountDownLatch ready = new CountDownLatch(1);
     public UserNode( String id ) {
         myId = id;
+        nodeId = id;
+    }
+
+    /**
+     * @brief serialize() encodes a messageWrapper into a byte array with
+     * wireCodec so that it can be sent over ProjectLib
+     * @param msgwrap takes a messageWrapper
+     * @return outputs encoded message in form of byte array
+     */
+    public static byte[] serialize(messageWrapper msgwrap) throws IOException{
+        return wireCodec.encode(msgwrap);
     }
 
     /**
-     * @brief serialize() serializes an object into a byte array so that it can 
-     * be sent to the server
-     * @param obj takes an Object
-     * @return outputs serialized object in form of byte array
+     * @brief deserialize() decodes a byte array produced by serialize()
+     * @param input takes a byte[]
+     * @return returns messageWrapper from byte[] input
      */
-    public static byte[] serialize(Object obj) throws IOException{
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-        objectOutputStream.writeObject(obj);
-        byte[] output = outputStream.toByteArray();
-        return output;
+    public static messageWrapper deserialize(byte[] input) throws IOException {
+        return wireCodec.decode(input);
     }
 
     /**
-     * @brief deserialize() deserializes a byte array into an object
+     * @brief deserializeAll() decodes a message body that may hold several
+     * messages packed together by the server's messageBatcher
      * @param input takes a byte[]
-     * @return returns object from byte[] input
+     * @return returns List of messageWrapper in the order they were sent
+     */
+    public static List<messageWrapper> deserializeAll(byte[] input) throws IOException {
+        return wireCodec.decodeAll(input);
+    }
+
+    /**
+     * @brief send() sends a message to the coordinator in its addr through
+     * the batcher, which may coalesce it with other votes and acks sent to
+     * that coordinator around the same time
+     * @param msgwrap takes messageWrapper to send
      */
-    public static Object deserialize(byte[] input) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(input);
-        ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-        Object obj = objectInputStream.readObject();
-        return obj;
+    public static void send(messageWrapper msgwrap) throws IOException {
+        batcher.send(msgwrap.addr, msgwrap);
     }
 
     /**
-     * @brief takes an object with metadata about userNode state and logs it 
-     * using a file output stream and the project library function fsync()
-     * @param obj takes Object
+     * @brief logState() appends a record to the participant log and returns
+     * once it is durable. Records logged by concurrent collages share one
+     * fsync().
+     * @param rec takes logRecord to be logged
      */
-    public void logState(Object state) {
+    public static void logState(logRecord rec) {
         try {
-            RandomAccessFile raf = new RandomAccessFile("userState.log", "rw");
-            FileOutputStream fileOutputStr = new FileOutputStream(raf.getFD());
-            ObjectOutputStream objOutputStr = new ObjectOutputStream(fileOutputStr);
-            objOutputStr.writeObject(state);
-            objOutputStr.close();
-            raf.close();
-            PL.fsync();
+            log.append(rec);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * @brief logStateLazy() appends a record to the participant log without
+     * waiting; it becomes durable with the next logState() or logSync()
+     * @param rec takes logRecord to be logged
+     */
+    public static void logStateLazy(logRecord rec) {
+        try {
+            log.appendLazy(rec);
         }
         catch(IOException e) {
             e.printStackTrace();
@@ -63,139 +198,909 @@ public class UserNode implements ProjectLib.MessageHandling {
     }
 
     /**
-     * @brief recovery routine when userNode crashes. Reads log and resumes 
-     * from where it crashed based on the phase it was in.
+     * @brief logSync() makes every record appended so far durable with at
+     * most one fsync()
      */
-    public static void recoverState() {
+    public static void logSync() {
         try {
-            FileInputStream fileInputStr = new FileInputStream("userState.log");
-            ObjectInputStream objInputStr = new ObjectInputStream(fileInputStr);
-            state userNodeState = (state)objInputStr.readObject();
-            //information is retreived from the log file
-            int decision = userNodeState.decision;
-            int phase = userNodeState.phase;
-            String filename = userNodeState.filename;
-            String[] sources = userNodeState.sources;
-            lock(userNodeState.sources);
-            messageWrapper msgwrap;
-            ProjectLib.Message msg;
-            switch (phase) {
-                case PREPARE: 
-                    msgwrap = new messageWrapper(decision, null, "Server", sources, filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
-                case COMMIT: 
-                    //delete image
-                    deleteFile(sources);
-                    //unlock resources
-                    unlock(sources);
-                    //send ack to server
-                    msgwrap = new messageWrapper(ACK, null, "Server", sources, filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
+            log.sync();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief recovery routine when userNode crashes. Replays the participant
+     * log and resumes every collage from the last phase it reached: prepared
+     * collages get their locks back and their vote re-sent, decided ones are
+     * applied again and acked if the ack may have been lost, and one-phase
+     * outcomes are remembered and re-sent if the server may not have them.
+     */
+    public static void recoverState() {
+        //id of each attempt to its VOTE, DECISION and END records
+        LinkedHashMap<String, logRecord[]> table = new LinkedHashMap<String, logRecord[]>();
+        for (logRecord rec : log.getRecovered()) {
+            logRecord[] entry = table.computeIfAbsent(rec.txn, t -> new logRecord[3]);
+            switch (rec.type) {
+                case logRecord.REFUSAL:
+                    //refused to a peer, a PREPARE that comes later is voted down
+                    remember(rec.txn, ABORT);
+                    break;
+                case logRecord.VOTE:
+                    entry[0] = rec;
                     break;
-                case ABORT:
-                    //unlock resources
-                    unlock(sources);
-                    //send ack to server
-                    msgwrap = new messageWrapper(ACK, null, "Server", sources, filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
+                case logRecord.DECISION:
+                    entry[1] = rec;
+                    break;
+                case logRecord.END:
+                    entry[2] = rec;
                     break;
             }
         }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
+        try {
+            for (Map.Entry<String, logRecord[]> e : table.entrySet()) {
+                recoverTxn(e.getKey(), e.getValue()[0], e.getValue()[1], e.getValue()[2] != null);
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * @brief recoverTxn() resumes one collage found in the participant log
+     * @param id takes String id of the attempt at the collage
+     * @param vote takes the VOTE logRecord, or null if none
+     * @param decision takes the DECISION logRecord, or null if none
+     * @param ended takes boolean, true if the collage was fully acked
+     */
+    public static void recoverTxn(String id, logRecord vote, logRecord decision, boolean ended) throws IOException {
+        messageWrapper msgwrap;
+        String filename = vote != null ? vote.filename : decision != null ? decision.filename : null;
+        //answer the shard that coordinated the collage
+        String server = vote != null && vote.coordinator != null ? vote.coordinator
+            : decision != null && decision.coordinator != null ? decision.coordinator : "Server";
+        if (decision != null) {
+            //peers may ask about it
+            remember(id, decision.decision);
+        }
+        if (vote != null && vote.phase == ONE_PHASE) {
+            //the outcome was applied here, finish applying it and tell the
+            //server again until it acks, unless it already did
+            remember(id, vote.decision);
+            if (vote.decision == COMMIT) {
+                deleteFile(vote.sources);
+            }
+            if (!ended) {
+                trace.record(eventTrace.RETRANSMIT, filename, server, vote.decision);
+                sendOutcome(new messageWrapper(vote.decision, null, server, vote.sources, filename, id));
+            }
+            return;
+        }
+        if (decision == null) {
+            if (vote == null || vote.decision != COMMIT) {
+                return;
+            }
+            //prepared and in doubt: hold the locks again and re-send the vote
+            lock(id, vote.sources);
+            msgwrap = new messageWrapper(PREPARE, null, server, vote.sources, filename, id);
+            msgwrap.peers = vote.peers;
+            participantTxn txn = new participantTxn(msgwrap, server);
+            txn.lockedAt = System.nanoTime();
+            txn.votedAt = System.currentTimeMillis();
+            txns.put(id, txn);
+            trace.record(eventTrace.RETRANSMIT, filename, server, COMMIT);
+            send(new messageWrapper(COMMIT, null, server, vote.sources, filename, id));
+            if (PRESUMED_ABORT) {
+                scheduleInquiry(txn);
+            }
+            scheduleTermination(txn, 1);
+            return;
+        }
+        if (vote == null) {
+            //decided without a vote here, nothing to apply or ack
+            return;
+        }
+        String[] sources = vote.sources;
+        if (decision.decision == COMMIT) {
+            //delete image again, in case the crash came first
+            deleteFile(sources);
+        }
+        if (!ended && (decision.decision == COMMIT || !PRESUMED_ABORT)) {
+            //send ack to server, it may have been lost
+            trace.record(eventTrace.ACK, filename, server, ACK);
+            send(new messageWrapper(ACK, null, server, sources, filename, id));
+            logStateLazy(logRecord.end(filename, id));
         }
     }
 
     /**
      * @brief deliverMessage() receives a message from the server and sends an
-     * appropriate response back. If in PREPARE phase, makes necessary checks, 
-     * locks resources, asks user for vote and then logs and sends decision to 
-     * server. If userNode receives decision (Commit or Abort), it unlocks or 
-     * deletes resources and sends acknowledgement to server.
+     * appropriate response back. A PREPARE is handed to a worker thread (see
+     * handlePrepare()) so that decisions for other collages keep flowing while
+     * the user is being asked. If userNode receives decision (Commit or
+     * Abort), it unlocks or deletes resources and sends acknowledgement to
+     * server. Messages that arrive before init() is done wait for it, so
+     * a decision is never applied to a collage recovery has yet to lock.
      * @param message takes a ProjectLib.Message
      * @return returns true if message is received and delivered correctly
      */
     public boolean deliverMessage( ProjectLib.Message message ) {
-        System.out.println( myId + ": Got message from " + message.addr );
         try {
-            messageWrapper msgwrap = (messageWrapper)deserialize(message.body);
-            ProjectLib.Message msg;
-            switch(msgwrap.opcode) {
-                case PREPARE:
-                    int decision;
-                    //check for image and check whether sources are locked
-                    if (!checkForImage(msgwrap.sources) || isLocked(msgwrap.sources)) {
-                        msgwrap = new messageWrapper(ABORT, null, "Server", msgwrap.sources, msgwrap.filename);
-                        msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                        break;
+            ready.await();
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        long start = System.nanoTime();
+        try {
+            //the server may pack several messages into one; the decisions in
+            //it are made durable with one fsync before any of them is acked
+            ArrayList<messageWrapper> acks = new ArrayList<messageWrapper>();
+            for (messageWrapper msgwrap : deserializeAll(message.body)) {
+                handleMessage(message.addr, msgwrap, acks);
+            }
+            if (!acks.isEmpty()) {
+                long t = System.nanoTime();
+                //the sync covers the deletes of committed sources too
+                files.flush();
+                logSync();
+                ackSyncTime.since(t);
+                for (messageWrapper ack : acks) {
+                    trace.record(eventTrace.ACK, ack.filename, ack.addr, ACK);
+                    send(ack);
+                    logStateLazy(logRecord.end(ack.filename, ack.txn));
+                }
+            }
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        deliverTime.since(start);
+        return true;
+    }
+
+    /**
+     * @brief handleMessage() handles one protocol message from a coordinator
+     * @param from takes String address of the coordinator shard, which the
+     * reply goes to
+     * @param msgwrap takes messageWrapper
+     * @param acks takes List that acks to send once the log is synced are
+     * added to
+     */
+    public void handleMessage(String from, messageWrapper msgwrap, List<messageWrapper> acks) throws IOException {
+        participantTxn txn;
+        Integer outcome;
+        trace.record(eventTrace.RECEIVED, msgwrap.filename, from, msgwrap.opcode);
+        switch(msgwrap.opcode) {
+            case ONE_PHASE:
+                //handled like a PREPARE, see handlePrepare(). A collage is
+                //remembered before it leaves txns, so checking both under the
+                //outcomes lock never runs a re-sent request twice.
+                txn = new participantTxn(msgwrap, from);
+                boolean fresh = false;
+                synchronized (outcomes) {
+                    outcome = outcomeOf(msgwrap.txn);
+                    if (outcome == null) {
+                        fresh = txns.putIfAbsent(msgwrap.txn, txn) == null;
+                    }
+                }
+                if (fresh) {
+                    submitPrepare(txn);
+                    break;
+                }
+                stats.count("duplicates", from);
+                if (outcome != null) {
+                    //already decided, the server did not get the outcome
+                    trace.record(eventTrace.RETRANSMIT, msgwrap.filename, from, outcome);
+                    send(new messageWrapper(outcome, null, from, msgwrap.sources, msgwrap.filename, msgwrap.txn));
+                }
+                break;
+            case PREPARE:
+                txn = new participantTxn(msgwrap, from);
+                //a duplicate PREPARE is already being handled or decided, and
+                //one refused to a peer is voted down
+                boolean added = false;
+                synchronized (outcomes) {
+                    outcome = outcomes.get(msgwrap.txn);
+                    if (outcome == null) {
+                        added = txns.putIfAbsent(msgwrap.txn, txn) == null;
+                    }
+                }
+                if (added) {
+                    submitPrepare(txn);
+                    break;
+                }
+                stats.count("duplicates", from);
+                if (outcome != null && outcome == ABORT) {
+                    trace.record(eventTrace.VOTE, msgwrap.filename, from, ABORT);
+                    send(new messageWrapper(ABORT, null, from, msgwrap.sources, msgwrap.filename, msgwrap.txn));
+                    //no decision follows an abort vote, so a refusal is
+                    //finished here, as in voteAbort()
+                    if (PRESUMED_ABORT) {
+                        logStateLazy(logRecord.end(msgwrap.filename, msgwrap.txn));
+                    }
+                }
+                break;
+            case IMAGE:
+                //server answered a FETCH with a chunk, ask for the next one,
+                //and resume the PREPARE waiting on it once the image is whole
+                txn = txns.get(msgwrap.txn);
+                if (msgwrap.size <= imageSpool.CHUNK) {
+                    //a small image comes whole and goes in the cache
+                    cache.put(msgwrap.hash, msgwrap.img);
+                    if (txn != null && txn.resumeWithImage(msgwrap.img)) {
+                        submitPrepare(txn);
                     }
-                    //lock resources
-                    lock(msgwrap.sources);
-                    //ask user and send decision to server
-                    ProjectLib.Message imgMsg = msgwrap.msg;
-                    boolean vote = PL.askUser(serialize(imgMsg.body), msgwrap.sources);
-                    if (vote) {
-                        decision = COMMIT;
-                        state userNodeState = new state(msgwrap.filename, decision, msgwrap.sources, PREPARE);
-                        logState(userNodeState);
-                    } else {
-                        decision = ABORT;
+                    break;
+                }
+                imageSpool spool = txn == null ? null : txn.spool;
+                if (spool == null || !spool.put(msgwrap.offset, msgwrap.img)) {
+                    break;
+                }
+                if (!spool.complete()) {
+                    requestChunks(txn);
+                    break;
+                }
+                //hashing a large image would hold up delivery
+                participantTxn fetched = txn;
+                String hash = msgwrap.hash;
+                txn.prompt = workers.submit(() -> {
+                    try {
+                        resumeFetched(fetched, hash, spool);
+                    }
+                    catch(IOException e) {
+                        e.printStackTrace();
                     }
-                    msgwrap = new messageWrapper(decision, null, "Server", msgwrap.sources, msgwrap.filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
+                });
+                break;
+            case ACK:
+                confirmOutcome(msgwrap.txn);
+                break;
+            case COMMIT:
+                //the server answers a one-phase outcome it already finished
+                //as it would an inquiry; either way it has the outcome
+                if (confirmOutcome(msgwrap.txn)) {
                     break;
-                case COMMIT:
-                    //delete image
-                    deleteFile(msgwrap.sources);
-                    //unlock resources
-                    unlock(msgwrap.sources);
-                    //send ack to server
-                    msgwrap = new messageWrapper(ACK, null, "Server", msgwrap.sources, msgwrap.filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
+                }
+                long start = System.nanoTime();
+                if (!learn(from, msgwrap.txn, COMMIT)) {
                     break;
-                case ABORT:
-                    //unlock resources
-                    unlock(msgwrap.sources);
-                    msgwrap = new messageWrapper(ACK, null, "Server", msgwrap.sources, msgwrap.filename);
-                    msg = new ProjectLib.Message("Server", serialize(msgwrap));
-                    PL.sendMessage(msg);
+                }
+                decided(from, decide(msgwrap.txn));
+                trace.record(eventTrace.DECISION, msgwrap.filename, from, COMMIT);
+                logStateLazy(logRecord.decision(msgwrap.filename, msgwrap.txn, COMMIT, from));
+                //delete image, in the background but before the ack
+                files.deleteLater(msgwrap.sources);
+                //unlock resources
+                unlock(msgwrap.txn, msgwrap.sources);
+                //ack to server once the decision is durable
+                acks.add(new messageWrapper(ACK, null, from, msgwrap.sources, msgwrap.filename, msgwrap.txn));
+                decisionTime.since(start);
+                break;
+            case ABORT:
+                if (confirmOutcome(msgwrap.txn)) {
                     break;
+                }
+                start = System.nanoTime();
+                //an abort sent early, or to a vote the coordinator has
+                //forgotten, can come after the commit
+                if (!learn(from, msgwrap.txn, ABORT)) {
+                    break;
+                }
+                participantTxn aborted = decide(msgwrap.txn);
+                decided(from, aborted);
+                if (aborted != null) {
+                    aborted.cancelPrompt();
+                }
+                trace.record(eventTrace.DECISION, msgwrap.filename, from, ABORT);
+                logStateLazy(logRecord.decision(msgwrap.filename, msgwrap.txn, ABORT, from));
+                //unlock resources
+                unlock(msgwrap.txn, msgwrap.sources);
+                //the server does not wait for acks of a presumed abort
+                if (!PRESUMED_ABORT) {
+                    acks.add(new messageWrapper(ACK, null, from, msgwrap.sources, msgwrap.filename, msgwrap.txn));
+                }
+                else {
+                    logStateLazy(logRecord.end(msgwrap.filename, msgwrap.txn));
+                }
+                decisionTime.since(start);
+                break;
+            case PEER_QUERY:
+                answerPeer(from, msgwrap.filename, msgwrap.txn);
+                break;
+            case PEER_COMMIT:
+            case PEER_ABORT:
+                applyPeerDecision(from, msgwrap.txn, msgwrap.opcode == PEER_COMMIT ? COMMIT : ABORT);
+                break;
+            case PEER_UNKNOWN:
+                //the peer is in doubt too, the next round asks again
+                break;
+        }
+    }
+
+    /**
+     * @brief decided() accounts for a decision from the coordinator: a
+     * re-sent one is counted, and a first one samples how long the
+     * coordinator took to decide after the vote and how long the sources
+     * were locked
+     * @param from takes String address of the coordinator
+     * @param txn takes participantTxn returned by decide(), or null
+     */
+    public static void decided(String from, participantTxn txn) {
+        if (txn == null) {
+            stats.count("duplicates", from);
+            return;
+        }
+        if (txn.votedAt > 0) {
+            decisionRtt(from).sample(System.currentTimeMillis() - txn.votedAt);
+        }
+        unlocked(txn);
+    }
+
+    /**
+     * @brief unlocked() records how long a decided collage held its sources
+     * @param txn takes participantTxn of the collage
+     */
+    public static void unlocked(participantTxn txn) {
+        if (txn.lockedAt > 0) {
+            lockHeldTime.since(txn.lockedAt);
+        }
+    }
+
+    public static rttEstimator decisionRtt(String coordinator) {
+        return decisionRtt.computeIfAbsent(coordinator, c -> new rttEstimator(INQUIRY, MIN_QUERY, INQUIRY));
+    }
+
+    /**
+     * @brief answerPeer() tells a peer in doubt what this node knows about a
+     * collage: its decision if it has one, nothing if it is in doubt or
+     * still voting, and abort if it never got the PREPARE. In that last case
+     * the collage is refused first, durably, so that a PREPARE arriving
+     * later is voted down and the collage can only abort. The REFUSAL record
+     * names no coordinator, since the peer is not one; it is ended by the
+     * coordinator's abort, or under presumed abort by the abort vote.
+     * @param peer takes String address of the usernode asking
+     * @param filename takes String indicating name of collage
+     * @param id takes String id of the attempt at the collage
+     */
+    public static void answerPeer(String peer, String filename, String id) throws IOException {
+        Integer outcome;
+        boolean refuse = false;
+        synchronized (outcomes) {
+            outcome = outcomes.get(id);
+            if (outcome == null && !txns.containsKey(id) && !forgotten) {
+                outcome = ABORT;
+                outcomes.put(id, ABORT);
+                refuse = true;
             }
         }
-        catch(IOException e) {
-            e.printStackTrace();
+        if (refuse) {
+            stats.count("refusals", peer);
+            logState(logRecord.refusal(filename, id));
         }
-        catch (ClassNotFoundException e) {
-            e.printStackTrace();
+        int reply = outcome == null ? PEER_UNKNOWN : outcome == COMMIT ? PEER_COMMIT : PEER_ABORT;
+        send(new messageWrapper(reply, null, peer, null, filename, id));
+    }
+
+    /**
+     * @brief applyPeerDecision() applies a decision learned from a peer to a
+     * collage this node is in doubt about, the same way as one from the
+     * coordinator but without an ack; the coordinator's own decision is
+     * acked as a duplicate when it comes
+     * @param peer takes String address of the usernode that answered
+     * @param id takes String id of the attempt at the collage
+     * @param decision takes int indicating abort or commit
+     */
+    public static void applyPeerDecision(String peer, String id, int decision) {
+        participantTxn txn = txns.get(id);
+        if (txn == null) {
+            return;
+        }
+        String filename = txn.filename;
+        synchronized (txn) {
+            //only a node that voted commit is in doubt
+            if (txn.decided || txn.votedAt == 0) {
+                return;
+            }
+        }
+        remember(id, decision);
+        if (decide(id) == null) {
+            return;
+        }
+        stats.count("terminations", peer);
+        trace.record(eventTrace.DECISION, filename, peer, decision);
+        String[] sources = txn.prepare.sources;
+        logStateLazy(logRecord.decision(filename, id, decision, txn.coordinator));
+        if (decision == COMMIT) {
+            deleteFile(sources);
+        }
+        unlock(id, sources);
+        unlocked(txn);
+        if (decision == ABORT && PRESUMED_ABORT) {
+            logStateLazy(logRecord.end(filename, id));
+        }
+    }
+
+    /**
+     * @brief decide() marks a collage as decided so that a PREPARE still on a
+     * worker does not lock its sources, and forgets it
+     * @param id takes String id of the attempt at the collage
+     * @return returns the participantTxn, or null if it was decided before,
+     * so the decision was re-sent
+     */
+    public static participantTxn decide(String id) {
+        participantTxn txn = txns.remove(id);
+        if (txn != null) {
+            txn.decide();
+        }
+        return txn;
+    }
+
+    /**
+     * @brief submitPrepare() runs handlePrepare() for txn on a worker thread
+     * @param txn takes participantTxn of the collage
+     */
+    public void submitPrepare(participantTxn txn) {
+        txn.prompt = workers.submit(() -> {
+            try {
+                handlePrepare(txn);
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * @brief handlePrepare() makes the necessary checks, locks resources, asks
+     * user for vote and then logs and sends the vote to the server. If the
+     * PREPARE only carries the hash of a collage that is not in the cache,
+     * the image is fetched from the server first. Runs on a worker thread.
+     * @param txn takes participantTxn of the collage
+     */
+    public void handlePrepare(participantTxn txn) throws IOException {
+        int decision;
+        messageWrapper msgwrap = txn.prepare;
+        long t = System.nanoTime();
+        //check for image and check whether sources are locked
+        if (!checkForImage(msgwrap.sources) || isLocked(msgwrap.sources)) {
+            voteAbort(txn);
+            return;
+        }
+        byte[] img = msgwrap.img;
+        if (img != null) {
+            cache.put(msgwrap.hash, img);
+        }
+        else {
+            img = cachedImage(msgwrap.hash);
+            if (img == null) {
+                fetchImage(txn);
+                return;
+            }
+        }
+        //lock resources, all of them or none if another collage got there
+        //first; nothing is locked once the decision has been handled
+        synchronized (txn) {
+            if (txn.decided) {
+                return;
+            }
+            if (!lock(txn.id, msgwrap.sources)) {
+                voteAbort(txn);
+                return;
+            }
+            txn.lockedAt = System.nanoTime();
+            txn.asking = Thread.currentThread();
+        }
+        t = checkTime.since(t);
+        //ask user and send decision to server; an abort that arrives
+        //meanwhile cuts the prompt short where the transport allows it
+        boolean vote;
+        try {
+            vote = PL.askUser(img, msgwrap.sources);
+        }
+        finally {
+            txn.promptDone();
+        }
+        t = askTime.since(t);
+        //the collage was aborted while the user was asked: the sources are
+        //unlocked already and a vote would only be logged for nothing
+        if (txn.decided) {
+            stats.count("latePrompts", txn.coordinator);
+            return;
+        }
+        if (!vote) {
+            voteAbort(txn);
+            return;
+        }
+        if (msgwrap.opcode == ONE_PHASE) {
+            commitOnePhase(txn);
+            return;
+        }
+        decision = COMMIT;
+        logState(logRecord.vote(msgwrap.filename, txn.id, msgwrap.sources, decision, PREPARE, txn.coordinator, msgwrap.peers));
+        voteLogTime.since(t);
+        synchronized (txn) {
+            txn.votedAt = System.currentTimeMillis();
+        }
+        trace.record(eventTrace.VOTE, msgwrap.filename, txn.coordinator, decision);
+        send(new messageWrapper(decision, null, txn.coordinator, msgwrap.sources, msgwrap.filename, txn.id));
+        if (PRESUMED_ABORT) {
+            scheduleInquiry(txn);
+        }
+        scheduleTermination(txn, 1);
+    }
+
+    /**
+     * @brief cachedImage() looks up an image received before, in the cache
+     * or in a spool file. A spooled image is copied onto the heap only here,
+     * since askUser() takes nothing else.
+     * @param hash takes String content address
+     * @return returns byte[] image, or null if it has to be fetched
+     */
+    public static byte[] cachedImage(String hash) {
+        byte[] img = cache.get(hash);
+        if (img != null) {
+            return img;
+        }
+        imageSpool spool;
+        synchronized (spools) {
+            spool = spools.get(hash);
+        }
+        return spool == null ? null : spool.toArray();
+    }
+
+    /**
+     * @brief resumeFetched() checks a fetched image against its hash, keeps
+     * it and runs the PREPARE that was waiting for it. Runs on a worker
+     * thread.
+     * @param txn takes participantTxn of the collage
+     * @param hash takes String content address the PREPARE named
+     * @param spool takes the complete imageSpool
+     */
+    public void resumeFetched(participantTxn txn, String hash, imageSpool spool) throws IOException {
+        if (!spool.hash().equals(hash)) {
+            System.err.println("UserNode: " + txn.filename + " image does not match its hash");
+            spool.delete();
+            voteAbort(txn);
+            return;
+        }
+        //kept for later PREPAREs of the same image
+        synchronized (spools) {
+            imageSpool old = spools.put(hash, spool);
+            if (old != null && old != spool) {
+                old.delete();
+            }
+        }
+        if (txn.resumeWithImage(null)) {
+            handlePrepare(txn);
+        }
+    }
+
+    /**
+     * @brief fetchImage() parks a PREPARE whose image is not here and asks
+     * the server for it: a small image in one piece, a large one into a
+     * new spool file, starting with the first WINDOW chunks; each chunk that
+     * arrives asks for the next one
+     * @param txn takes participantTxn of the collage
+     */
+    public static void fetchImage(participantTxn txn) throws IOException {
+        messageWrapper prepare = txn.prepare;
+        stats.count("fetches", txn.coordinator);
+        if (prepare.size <= imageSpool.CHUNK) {
+            synchronized (txn) {
+                txn.waitingForImage = true;
+            }
+            send(new messageWrapper(FETCH, null, txn.coordinator, null, prepare.filename, txn.id));
+            return;
+        }
+        //a fresh file per fetch: spools outlive their collage in spools, and
+        //a collage name may repeat or contain a separator
+        Path path = Files.createTempFile(Paths.get("."), "spool-" + nodeId + "-", ".img");
+        imageSpool spool = imageSpool.create(path, prepare.size);
+        synchronized (txn) {
+            if (txn.decided) {
+                spool.delete();
+                return;
+            }
+            txn.waitingForImage = true;
+            txn.spool = spool;
+        }
+        requestChunks(txn);
+        scheduleRefetch(txn, spool.received());
+    }
+
+    /**
+     * @brief requestChunks() asks for chunks of the image until WINDOW of
+     * them are outstanding
+     * @param txn takes participantTxn of the collage
+     */
+    public static void requestChunks(participantTxn txn) throws IOException {
+        int offset;
+        while ((offset = txn.spool.nextRequest()) >= 0) {
+            messageWrapper fetch = new messageWrapper(FETCH, null, txn.coordinator, null, txn.filename, txn.id);
+            fetch.offset = offset;
+            send(fetch);
+        }
+    }
+
+    /**
+     * @brief scheduleRefetch() asks for the outstanding chunks again if none
+     * arrived for FETCH_RETRY milliseconds, since a FETCH or an IMAGE may
+     * have been lost
+     * @param txn takes participantTxn of the collage
+     * @param seen takes int chunks received when it was scheduled
+     */
+    public static void scheduleRefetch(participantTxn txn, int seen) {
+        timers.schedule(() -> {
+            imageSpool spool = txn.spool;
+            synchronized (txn) {
+                if (txn.decided || !txn.waitingForImage || spool.complete()) {
+                    return;
+                }
+            }
+            if (spool.received() == seen) {
+                stats.count("refetches", txn.coordinator);
+                for (int offset : spool.outstanding()) {
+                    messageWrapper fetch = new messageWrapper(FETCH, null, txn.coordinator, null, txn.filename, txn.id);
+                    fetch.offset = offset;
+                    try {
+                        send(fetch);
+                    }
+                    catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            scheduleRefetch(txn, spool.received());
+        }, FETCH_RETRY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief voteAbort() sends an abort vote to the server. Under presumed
+     * abort no decision will follow it, so the collage is also forgotten and
+     * its sources unlocked right away. A one-phase abort is an outcome, see
+     * abortOnePhase().
+     * @param txn takes participantTxn of the collage
+     */
+    public static void voteAbort(participantTxn txn) throws IOException {
+        messageWrapper prepare = txn.prepare;
+        if (prepare.opcode == ONE_PHASE) {
+            abortOnePhase(txn);
+            return;
+        }
+        //remembered before it is forgotten, so a re-sent request or a peer
+        //query always finds one or the other
+        remember(txn.id, ABORT);
+        if (PRESUMED_ABORT) {
+            participantTxn decided = decide(txn.id);
+            unlock(txn.id, prepare.sources);
+            if (decided != null) {
+                unlocked(decided);
+            }
+        }
+        //an abort vote needs no fsync, the server aborts if it never arrives
+        logStateLazy(logRecord.vote(prepare.filename, txn.id, prepare.sources, ABORT, prepare.opcode, txn.coordinator));
+        trace.record(eventTrace.VOTE, prepare.filename, txn.coordinator, ABORT);
+        send(new messageWrapper(ABORT, null, txn.coordinator, prepare.sources, prepare.filename, txn.id));
+        //no decision follows, so the collage is finished here
+        if (PRESUMED_ABORT) {
+            logStateLazy(logRecord.end(prepare.filename, txn.id));
+        }
+    }
+
+    /**
+     * @brief abortOnePhase() applies a one-phase collage the user or the
+     * checks refused. The node decides a one-phase collage, so the abort is
+     * made durable before the server hears it, like a commit: forgetting it
+     * would let a re-sent request run again and delete the sources of a
+     * collage the server discarded.
+     * @param txn takes participantTxn of the collage
+     */
+    public static void abortOnePhase(participantTxn txn) throws IOException {
+        messageWrapper prepare = txn.prepare;
+        logState(logRecord.vote(prepare.filename, txn.id, prepare.sources, ABORT, ONE_PHASE, txn.coordinator));
+        remember(txn.id, ABORT);
+        participantTxn decided = decide(txn.id);
+        unlock(txn.id, prepare.sources);
+        if (decided != null) {
+            unlocked(decided);
+        }
+        trace.record(eventTrace.VOTE, prepare.filename, txn.coordinator, ABORT);
+        sendOutcome(new messageWrapper(ABORT, null, txn.coordinator, prepare.sources, prepare.filename, txn.id));
+    }
+
+    /**
+     * @brief commitOnePhase() applies a one-phase collage the user agreed to:
+     * the outcome is logged with a single fsync, the sources are deleted and
+     * unlocked, and the outcome is sent to the server in place of a vote
+     * @param txn takes participantTxn of the collage
+     */
+    public void commitOnePhase(participantTxn txn) throws IOException {
+        messageWrapper prepare = txn.prepare;
+        long t = System.nanoTime();
+        logState(logRecord.vote(prepare.filename, txn.id, prepare.sources, COMMIT, ONE_PHASE, txn.coordinator));
+        voteLogTime.since(t);
+        remember(txn.id, COMMIT);
+        decide(txn.id);
+        deleteFile(prepare.sources);
+        unlock(txn.id, prepare.sources);
+        unlocked(txn);
+        trace.record(eventTrace.VOTE, prepare.filename, txn.coordinator, COMMIT);
+        sendOutcome(new messageWrapper(COMMIT, null, txn.coordinator, prepare.sources, prepare.filename, txn.id));
+    }
+
+    /**
+     * @brief sendOutcome() sends the outcome of a one-phase collage to its
+     * coordinator and keeps it until the coordinator acks it, re-sending it
+     * every INQUIRY milliseconds. Until then the collage has no END record,
+     * so its VOTE survives checkpoints and a re-sent request is answered
+     * from it, even after a restart.
+     * @param outcome takes messageWrapper, the COMMIT or ABORT to send
+     */
+    public static void sendOutcome(messageWrapper outcome) throws IOException {
+        unconfirmed.put(outcome.txn, outcome);
+        send(outcome);
+        scheduleOutcome(outcome, 1);
+    }
+
+    //re-sends an unconfirmed one-phase outcome, with a doubled wait each time
+    static void scheduleOutcome(messageWrapper outcome, int attempt) {
+        long wait = Math.min(INQUIRY << Math.min(attempt - 1, 4), 16 * INQUIRY);
+        timers.schedule(() -> {
+            if (unconfirmed.get(outcome.txn) != outcome) {
+                return;
+            }
+            stats.count("outcomeResends", outcome.addr);
+            trace.record(eventTrace.RETRANSMIT, outcome.filename, outcome.addr, outcome.opcode);
+            try {
+                send(outcome);
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            scheduleOutcome(outcome, attempt + 1);
+        }, wait, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief confirmOutcome() ends a one-phase collage once its coordinator
+     * shows it has the outcome
+     * @param id takes String id of the attempt at the collage
+     * @return returns true if the collage had an unconfirmed outcome
+     */
+    public static boolean confirmOutcome(String id) {
+        messageWrapper confirmed = unconfirmed.remove(id);
+        if (confirmed == null) {
+            return false;
         }
+        logStateLazy(logRecord.end(confirmed.filename, id));
         return true;
     }
 
+    /**
+     * @brief outcomeOf() returns what this node knows of a collage's
+     * outcome, from the recent outcomes or the unconfirmed one-phase ones.
+     * Callers hold the outcomes lock.
+     * @param id takes String id of the attempt at the collage
+     * @return returns Integer COMMIT or ABORT, or null if unknown
+     */
+    static Integer outcomeOf(String id) {
+        Integer outcome = outcomes.get(id);
+        if (outcome == null) {
+            messageWrapper pinned = unconfirmed.get(id);
+            outcome = pinned == null ? null : pinned.opcode;
+        }
+        return outcome;
+    }
+
+    /**
+     * @brief remember() records the outcome of a collage, for re-sent
+     * requests and peer queries
+     * @param id takes String id of the attempt at the collage
+     * @param decision takes int indicating abort or commit
+     */
+    public static void remember(String id, int decision) {
+        synchronized (outcomes) {
+            outcomes.put(id, decision);
+        }
+    }
+
+    /**
+     * @brief learn() records the coordinator's decision on a collage unless
+     * this node already knows the opposite outcome. A decision that
+     * contradicts it is counted as a duplicate and must not be applied,
+     * logged or acked.
+     * @param from takes String address of the coordinator
+     * @param id takes String id of the attempt at the collage
+     * @param decision takes int indicating abort or commit
+     * @return returns boolean, false if the decision contradicts the known one
+     */
+    public static boolean learn(String from, String id, int decision) {
+        synchronized (outcomes) {
+            Integer known = outcomeOf(id);
+            if (known == null || known == decision) {
+                outcomes.put(id, decision);
+                return true;
+            }
+        }
+        stats.count("duplicates", from);
+        return false;
+    }
+
+    /**
+     * @brief scheduleInquiry() re-sends the commit vote of txn every INQUIRY
+     * milliseconds until its decision arrives. The server answers a vote for
+     * a collage it no longer knows with an abort.
+     * @param txn takes participantTxn of the collage
+     */
+    public static void scheduleInquiry(participantTxn txn) {
+        timers.schedule(() -> {
+            synchronized (txn) {
+                if (txn.decided) {
+                    return;
+                }
+            }
+            messageWrapper prepare = txn.prepare;
+            stats.count("inquiries", txn.coordinator);
+            trace.record(eventTrace.RETRANSMIT, prepare.filename, txn.coordinator, COMMIT);
+            try {
+                send(new messageWrapper(COMMIT, null, txn.coordinator, prepare.sources, prepare.filename, txn.id));
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+            scheduleInquiry(txn);
+        }, INQUIRY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief scheduleTermination() asks the other usernodes of txn for its
+     * outcome if no decision came within the time the coordinator usually
+     * takes, and again with a doubled timeout until it is decided. Any peer
+     * that has the decision, voted abort or never got the PREPARE answers
+     * with the outcome, see answerPeer(); if all of them voted commit and
+     * none has the decision, only the coordinator can end it.
+     * @param txn takes participantTxn of the collage, which voted commit
+     * @param attempt takes int, 1 for the first round
+     */
+    public static void scheduleTermination(participantTxn txn, int attempt) {
+        String[] peers = txn.prepare.peers;
+        if (!TERMINATION || peers == null || peers.length < 2) {
+            return;
+        }
+        timers.schedule(() -> {
+            synchronized (txn) {
+                if (txn.decided) {
+                    return;
+                }
+            }
+            for (String peer : peers) {
+                if (peer.equals(nodeId)) {
+                    continue;
+                }
+                stats.count("peerQueries", peer);
+                trace.record(eventTrace.RETRANSMIT, txn.filename, peer, PEER_QUERY);
+                try {
+                    send(new messageWrapper(PEER_QUERY, null, peer, null, txn.filename, txn.id));
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            scheduleTermination(txn, attempt + 1);
+        }, decisionRtt(txn.coordinator).backoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
     /**
      * @brief given a String array of sources, checkForImage() checks whether
-     * the file exists in the userNode
+     * the file exists in the userNode, see sourceIndex
      * @param sources takes String[]
      * @return returns boolean indicating whether images exist on user side
      */
     public static boolean checkForImage(String[] sources) {
-        for (String source : sources) {
-            File file = new File(source);
-            if (!file.exists()) {
-                return false;
-            }
-        }
-        return true;
+        return files.exists(sources);
     }
 
     /**
@@ -205,68 +1110,86 @@ public class UserNode implements ProjectLib.MessageHandling {
      */
     public static void deleteFile(String[] sources) {
         for (String source: sources) {
-            File file = new File(source);
-            if (file.exists()) {
-                file.delete();
-            }
+            files.delete(source);
         }
     }
 
     /**
-     * @brief given a String array of sources, unlock() checks whether the file
-     * is in the list of locked sources and if it is locked, it removes it from
-     * the list
+     * @brief given a String array of sources, unlock() releases the locks that
+     * the collage holds on them. Sources locked by another collage are left
+     * locked.
+     * @param txn takes String id of the attempt at the collage
      * @param sources takes String[]
      */
-    public static void unlock(String[] sources) {
-        for (String source : sources) {
-            File file = new File(source);
-            if (file.exists()) {
-                lockList.remove(source);
-            }
-        }
+    public static void unlock(String txn, String[] sources) {
+        locks.unlockAll(txn, sources);
     }
     
     /**
-     * @brief given a String array of sources, lock() checks whether each file
-     * exists on the userNode and locks it (adds it to list of locked sources)
+     * @brief given a String array of sources, lock() locks all of them for the
+     * collage, or none of them if one is already locked by another collage
+     * @param txn takes String id of the attempt at the collage
      * @param sources takes String[]
+     * @return returns boolean indicating whether the sources were locked
      */
-    public static void lock(String[] sources) {
-        for (String source : sources) {
-            File file = new File(source);
-            if (file.exists()) {
-                lockList.add(source);
-            }
-        }
+    public static boolean lock(String txn, String[] sources) {
+        return locks.tryLockAll(txn, sources);
     }
 
     /**
-     * @brief given a String array of sources, isLocked() checks whether each 
-     * is locked (is in the list of locked sources) and returns true if at least
-     * one of the sources is locked and false otherwise
+     * @brief given a String array of sources, isLocked() returns true if at
+     * least one of the sources is locked and false otherwise
      * @param sources
      * @return returns boolean indicating whether sources are locked
      */
     public static boolean isLocked(String[] sources) {
-        for (String source : sources) {
-            if (lockList.contains(source)) {
-                return true;
+        return locks.isLocked(sources);
+    }
+
+
+    /**
+     * @brief init() sets up the usernode on top of PL: the batcher, the
+     * participant log at logPath, the index of its source files (watched
+     * for deletes unless -Dsources.watch=false), its metrics
+     * (dumped next to the log every -Dmetrics.dump.ms, 0 for never), its
+     * event trace (next to the log unless -Dtrace=false), and recovery of
+     * the collages in it
+     * @param tp takes transport to send, receive, ask the user and fsync with
+     * @param logPath takes String, name of the log file
+     */
+    public static void init(transport tp, String logPath) throws IOException {
+        PL = tp;
+        //a node with a log may have voted on collages it no longer remembers,
+        //even if a checkpoint compacted the log down to nothing
+        forgotten = new File(logPath).exists();
+        batcher = new messageBatcher(PL, Long.getLong("batch.window", 2), Integer.getInteger("batch.bytes", 64 << 10));
+        log = new serverLog(logPath, PL);
+        log.fsyncTime = fsyncTime;
+        String base = logPath.replaceFirst("\\.log$", "");
+        files = sourceIndex.open(Paths.get("."), Boolean.parseBoolean(System.getProperty("sources.watch", "true")));
+        //images being fetched when the node went down are fetched again
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("."), "spool-" + nodeId + "-*")) {
+            for (Path p : dir) {
+                Files.deleteIfExists(p);
             }
         }
-        return false;
+        stats.register(nodeId != null ? "node=" + nodeId : null);
+        stats.startDump(base + ".metrics", Long.getLong("metrics.dump.ms", 10000));
+        if (Boolean.parseBoolean(System.getProperty("trace", "true"))) {
+            trace = new eventTrace(base + ".trace", nodeId, Integer.getInteger("trace.buffer", 1 << 16));
+        }
+        if (!log.getRecovered().isEmpty()) {
+            recoverState();
+            log.clearRecovered();
+        }
+        ready.countDown();
     }
 
-
     public static void main ( String args[] ) throws Exception {
         if (args.length != 2) throw new Exception("Need 2 args: <port> <id>");
         UserNode UN = new UserNode(args[1]);
-        PL = new ProjectLib( Integer.parseInt(args[0]), args[1], UN );
+        init(new projectLibTransport(new ProjectLib( Integer.parseInt(args[0]), args[1], UN )), "userState.log");
         ProjectLib.Message msg = PL.getMessage();
-        File file = new File("userState.log");
-        if (file.exists()) {
-            recoverState();
-        }
     }
 }
 
@@ -0,0 +1,134 @@
+import java.util.*;
+
+/**
+ * admissionControl is the server's index from each user:source to the
+ * in-flight collage using it. A collage whose sources overlap one in flight
+ * is either rejected at once (FAIL_FAST) or waits until the sources are
+ * released (QUEUE), instead of burning a prepare round that the usernode lock
+ * check would abort anyway. A waiting collage that overlaps one which commits
+ * is rejected as soon as that happens, since its sources are being deleted.
+ * OFF admits everything, leaving conflicts to the usernode lock check.
+ */
+class admissionControl {
+    static final int FAIL_FAST = 0;
+    static final int QUEUE = 1;
+    static final int OFF = 2;
+
+    private final int policy;
+    //user:source -> collage filename using it
+    private final HashMap<String, String> owners = new HashMap<String, String>();
+    //collages waiting for their sources, mapped to their sources
+    private final HashMap<String, String[]> waiting = new HashMap<String, String[]>();
+    //waiting collages whose sources were consumed by a committed collage
+    private final HashSet<String> doomed = new HashSet<String>();
+    //statistics
+    long admitted = 0;
+    long rejected = 0;
+    long queued = 0;
+
+    public admissionControl(int policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @brief parsePolicy() maps the conflict.policy setting to a policy
+     * @param name takes String "failfast", "queue" or "off" (null for queue)
+     * @return returns int policy
+     */
+    public static int parsePolicy(String name) {
+        if ("failfast".equals(name)) {
+            return FAIL_FAST;
+        }
+        if ("off".equals(name)) {
+            return OFF;
+        }
+        return QUEUE;
+    }
+
+    /**
+     * @brief admit() claims every source for txn. If some are in use, the
+     * collage is rejected or, under QUEUE, waits up to timeout for them.
+     * @param txn takes String indicating the collage
+     * @param sources takes String[] of user:source
+     * @param timeout takes long, maximum wait in milliseconds
+     * @return returns true if the collage may go ahead
+     */
+    public synchronized boolean admit(String txn, String[] sources, long timeout) {
+        if (policy == OFF) {
+            admitted++;
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean counted = false;
+        try {
+            while (true) {
+                if (doomed.remove(txn)) {
+                    break;
+                }
+                if (!conflicts(txn, sources)) {
+                    for (String source : sources) {
+                        owners.put(source, txn);
+                    }
+                    admitted++;
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (policy == FAIL_FAST || remaining <= 0) {
+                    break;
+                }
+                if (!counted) {
+                    queued++;
+                    counted = true;
+                }
+                waiting.put(txn, sources);
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        finally {
+            waiting.remove(txn);
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * @brief release() frees the sources claimed by txn and wakes up waiting
+     * collages. If txn committed, the waiting collages that share a source
+     * with it are doomed and get rejected.
+     * @param txn takes String indicating the collage
+     * @param sources takes String[] of user:source
+     * @param committed takes boolean, whether txn committed
+     */
+    public synchronized void release(String txn, String[] sources, boolean committed) {
+        for (String source : sources) {
+            owners.remove(source, txn);
+        }
+        if (committed) {
+            HashSet<String> consumed = new HashSet<String>(Arrays.asList(sources));
+            for (Map.Entry<String, String[]> entry : waiting.entrySet()) {
+                for (String source : entry.getValue()) {
+                    if (consumed.contains(source)) {
+                        doomed.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private boolean conflicts(String txn, String[] sources) {
+        for (String source : sources) {
+            String owner = owners.get(source);
+            if (owner != null && !owner.equals(txn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * eventTrace records protocol events (message received, PREPARE sent, vote,
+ * decision, ack, retransmit, timeout) of every collage with its peer, opcode
+ * and System.nanoTime(), and writes them as JSON lines to a file, one event
+ * per line, for tools/TraceTimeline to rebuild per-collage timelines.
+ *
+ * Events go into a ring buffer of preallocated slots. A recording thread
+ * claims a slot with a compare-and-set on the tail, fills it and publishes
+ * it by setting the slot's sequence number; a single background thread
+ * drains published slots in order and writes them out. record() never
+ * blocks or allocates: if the buffer is full because the writer fell
+ * behind, the event is dropped and counted, and the count is written to the
+ * trace. The first line of a trace maps nanoTime to wall-clock time so that
+ * traces of different processes can be merged.
+ *
+ * Once the file grows past -Dtrace.bytes (64 MB by default), the writer
+ * renames it to <path>.1, replacing the previous one, and starts a new file,
+ * so a long run keeps at most about twice that on disk.
+ */
+class eventTrace {
+    static final int RECEIVED = 0;
+    static final int PREPARE = 1;
+    static final int VOTE = 2;
+    static final int DECISION = 3;
+    static final int ACK = 4;
+    static final int RETRANSMIT = 5;
+    static final int TIMEOUT = 6;
+    static final String[] NAMES = {"received", "prepare", "vote", "decision", "ack", "retransmit", "timeout"};
+    //how long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = 20000000;
+    //most events formatted into one write
+    private static final int DRAIN_BATCH = 8192;
+
+    private final String owner;
+    private final int mask;
+    private final long[] times;
+    private final int[] kinds;
+    private final int[] opcodes;
+    private final String[] txns;
+    private final String[] peers;
+    //sequence + 1 of the event in each slot once it is published
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    //next event to write, only advanced by the writer thread
+    private volatile long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final String path;
+    //size at which the file is rotated, and bytes written to it so far
+    private final long maxBytes;
+    private long written;
+    private Writer out;
+    private volatile boolean closed = false;
+    private Thread writer;
+
+    //a trace that records nothing
+    public eventTrace() {
+        this.owner = null;
+        this.mask = -1;
+        this.times = null;
+        this.kinds = null;
+        this.opcodes = null;
+        this.txns = null;
+        this.peers = null;
+        this.published = null;
+        this.path = null;
+        this.maxBytes = 0;
+    }
+
+    /**
+     * @brief opens a trace that appends to path and rotates it at
+     * -Dtrace.bytes
+     * @param path takes String, name of the trace file
+     * @param owner takes String, the address of the node that records it
+     * @param capacity takes int, number of slots, rounded up to a power of two
+     */
+    public eventTrace(String path, String owner, int capacity) throws IOException {
+        this(path, owner, capacity, Long.getLong("trace.bytes", 64L << 20));
+    }
+
+    /**
+     * @brief opens a trace that appends to path
+     * @param path takes String, name of the trace file
+     * @param owner takes String, the address of the node that records it
+     * @param capacity takes int, number of slots, rounded up to a power of two
+     * @param maxBytes takes long, size past which the file is rotated
+     */
+    public eventTrace(String path, String owner, int capacity, long maxBytes) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.owner = owner;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.kinds = new int[size];
+        this.opcodes = new int[size];
+        this.txns = new String[size];
+        this.peers = new String[size];
+        this.published = new AtomicLongArray(size);
+        this.path = path;
+        this.maxBytes = maxBytes;
+        open(true);
+        writer = new Thread(this::drainLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @brief record() adds an event to the trace
+     * @param kind takes int, one of RECEIVED .. TIMEOUT
+     * @param txn takes String name of the collage
+     * @param peer takes String address of the other side, or null
+     * @param opcode takes int opcode of the message involved
+     */
+    public void record(int kind, String txn, String peer, int opcode) {
+        if (mask < 0) {
+            return;
+        }
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        int slot = (int)seq & mask;
+        times[slot] = System.nanoTime();
+        kinds[slot] = kind;
+        opcodes[slot] = opcode;
+        txns[slot] = txn;
+        peers[slot] = peer;
+        published.lazySet(slot, seq + 1);
+    }
+
+    //writes published events until closed, then whatever is left. The
+    //writer wakes up every IDLE_NANOS, so it costs next to nothing when the
+    //node is quiet and writes large batches when it is busy.
+    private void drainLoop() {
+        StringBuilder sb = new StringBuilder(64 << 10);
+        String at = quote(owner);
+        long reported = 0;
+        try {
+            while (true) {
+                boolean stop = closed;
+                int n = drain(sb, at);
+                long d = dropped.get();
+                if (d != reported) {
+                    write("{\"ev\":\"dropped\",\"at\":" + at + ",\"t\":" + System.nanoTime() + ",\"n\":" + (d - reported) + "}\n");
+                    reported = d;
+                }
+                if (written >= maxBytes) {
+                    rotate();
+                }
+                if (n == 0) {
+                    out.flush();
+                    if (stop) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+            out.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //writes the events published in order from head, returns how many
+    private int drain(StringBuilder sb, String at) throws IOException {
+        int n = 0;
+        long h = head;
+        sb.setLength(0);
+        while (true) {
+            int slot = (int)h & mask;
+            if (n == DRAIN_BATCH || published.get(slot) != h + 1) {
+                break;
+            }
+            sb.append("{\"t\":").append(times[slot])
+                .append(",\"at\":").append(at)
+                .append(",\"ev\":\"").append(NAMES[kinds[slot]])
+                .append("\",\"txn\":");
+            quote(sb, txns[slot]);
+            sb.append(",\"peer\":");
+            quote(sb, peers[slot]);
+            sb.append(",\"op\":").append(opcodes[slot]).append("}\n");
+            txns[slot] = null;
+            peers[slot] = null;
+            h++;
+            n++;
+            //free the slots written so far once in a while, not per event
+            if ((n & 1023) == 0) {
+                head = h;
+            }
+        }
+        head = h;
+        if (n > 0) {
+            write(sb.toString());
+        }
+        return n;
+    }
+
+    //counts what goes into the file, in chars, which is bytes for the
+    //ASCII the events are made of
+    private void write(String s) throws IOException {
+        out.write(s);
+        written += s.length();
+    }
+
+    //opens the file and writes the line that maps nanoTime to wall-clock time
+    private void open(boolean append) throws IOException {
+        File file = new File(path);
+        written = append ? file.length() : 0;
+        out = new BufferedWriter(new FileWriter(file, append), 64 << 10);
+        write("{\"ev\":\"start\",\"at\":" + quote(owner) + ",\"t\":" + System.nanoTime()
+            + ",\"wall\":" + System.currentTimeMillis() + "}\n");
+    }
+
+    //moves the full file to path.1 and starts a new one
+    private void rotate() throws IOException {
+        out.close();
+        Files.move(Paths.get(path), Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        open(false);
+    }
+
+    /**
+     * @brief close() writes out every recorded event and closes the file
+     */
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief backlog() returns how many recorded events are not written yet
+     * @return returns long
+     */
+    public long backlog() {
+        return tail.get() - head;
+    }
+
+    /**
+     * @brief droppedCount() returns how many events were dropped because the
+     * buffer was full
+     * @return returns long
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    //formats s as a JSON string, or null
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder();
+        quote(sb, s);
+        return sb.toString();
+    }
+
+    static void quote(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,75 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * imageCache is a bounded LRU cache of collage images keyed by the hash of
+ * their contents, so that a usernode which already received a collage does
+ * not need it shipped again in a later PREPARE.
+ */
+class imageCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<String, byte[]> images = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    public imageCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @brief hash() computes the content address of an image
+     * @param img takes byte[]
+     * @return returns hex String of the SHA-256 of img
+     */
+    public static String hash(byte[] img) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(img);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @brief get() looks up an image and marks it as recently used
+     * @param hash takes String content address
+     * @return returns byte[] image, or null if it is not cached
+     */
+    public synchronized byte[] get(String hash) {
+        return images.get(hash);
+    }
+
+    /**
+     * @brief put() caches an image, evicting the least recently used images
+     * until both the entry and byte bounds hold again
+     * @param hash takes String content address
+     * @param img takes byte[] image
+     */
+    public synchronized void put(String hash, byte[] img) {
+        if (img.length > maxBytes) {
+            return;
+        }
+        byte[] old = images.put(hash, img);
+        if (old != null) {
+            bytes -= old.length;
+        }
+        bytes += img.length;
+        Iterator<Map.Entry<String, byte[]>> it = images.entrySet().iterator();
+        while ((images.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            if (eldest.getKey().equals(hash)) {
+                continue;
+            }
+            bytes -= eldest.getValue().length;
+            it.remove();
+        }
+    }
+}
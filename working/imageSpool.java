@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * imageSpool is a collage image kept in a memory-mapped file instead of on
+ * the heap. The server maps the staging file it already wrote and serves
+ * the image from it in fixed-size chunks; a usernode maps a spool file of
+ * the image's size and fills it in as chunks arrive, so neither side holds
+ * more than the chunks in flight on its heap.
+ *
+ * Images of at most CHUNK bytes still travel inline in the PREPARE. A
+ * larger one is pulled by the usernode with FETCH requests for one chunk
+ * each, answered with IMAGE messages. The node keeps at most WINDOW chunks
+ * of a collage requested and not yet received, and asks for the next chunk
+ * only when one arrives, so a slow node or link slows down its own
+ * transfer instead of piling up messages.
+ */
+class imageSpool {
+    //bytes per chunk, and chunks a usernode may have requested and not
+    //received yet for one collage
+    static final int CHUNK = Integer.getInteger("chunk.bytes", 64 << 10);
+    static final int WINDOW = Integer.getInteger("chunk.window", 8);
+
+    final Path path;
+    final int size;
+    private final MappedByteBuffer map;
+    //chunks received so far, and the next chunk not requested yet
+    private final BitSet received;
+    private int count = 0;
+    private int nextRequest = 0;
+
+    private imageSpool(Path path, int size, MappedByteBuffer map, boolean complete) {
+        this.path = path;
+        this.size = size;
+        this.map = map;
+        this.received = new BitSet(chunks(size));
+        if (complete) {
+            received.set(0, chunks(size));
+            count = chunks(size);
+            nextRequest = count;
+        }
+    }
+
+    /**
+     * @brief open() maps an image that is already complete on disk
+     * @param path takes Path of the file, the server's staging file
+     * @return returns imageSpool to serve chunks from
+     */
+    public static imageSpool open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int size = (int)channel.size();
+            return new imageSpool(path, size, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), true);
+        }
+    }
+
+    /**
+     * @brief create() maps a new spool file to receive an image into
+     * @param path takes Path of the spool file, replaced if it exists
+     * @param size takes int size of the image in bytes
+     * @return returns an empty imageSpool
+     */
+    public static imageSpool create(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return new imageSpool(path, size, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), false);
+        }
+    }
+
+    //number of chunks of an image of size bytes
+    static int chunks(int size) {
+        return (int)(((long)size + CHUNK - 1) / CHUNK);
+    }
+
+    /**
+     * @brief chunk() copies one chunk of the image
+     * @param offset takes int byte offset of the chunk, a multiple of CHUNK
+     * @return returns byte[] of at most CHUNK bytes, or null past the end
+     */
+    public byte[] chunk(int offset) {
+        if (offset < 0 || offset >= size || offset % CHUNK != 0) {
+            return null;
+        }
+        byte[] data = new byte[Math.min(CHUNK, size - offset)];
+        map.duplicate().position(offset).get(data);
+        return data;
+    }
+
+    /**
+     * @brief put() stores a received chunk
+     * @param offset takes int byte offset of the chunk
+     * @param data takes byte[] chunk
+     * @return returns true if the chunk is new
+     */
+    public synchronized boolean put(int offset, byte[] data) {
+        if (offset < 0 || offset % CHUNK != 0 || offset + data.length > size || received.get(offset / CHUNK)) {
+            return false;
+        }
+        map.duplicate().position(offset).put(data);
+        received.set(offset / CHUNK);
+        count++;
+        return true;
+    }
+
+    /**
+     * @brief nextRequest() returns the offset of the next chunk to ask for,
+     * if fewer than WINDOW chunks are outstanding
+     * @return returns int byte offset, or -1 if there is nothing to ask for
+     */
+    public synchronized int nextRequest() {
+        if (nextRequest >= chunks(size) || nextRequest - count >= WINDOW) {
+            return -1;
+        }
+        return nextRequest++ * CHUNK;
+    }
+
+    /**
+     * @brief outstanding() returns the offsets of the chunks requested and
+     * not received yet, to ask for them again
+     * @return returns int[] byte offsets
+     */
+    public synchronized int[] outstanding() {
+        int[] offsets = new int[nextRequest - count];
+        int n = 0;
+        for (int i = received.nextClearBit(0); i < nextRequest; i = received.nextClearBit(i + 1)) {
+            offsets[n++] = i * CHUNK;
+        }
+        return offsets;
+    }
+
+    public synchronized int received() {
+        return count;
+    }
+
+    public synchronized boolean complete() {
+        return count == chunks(size);
+    }
+
+    /**
+     * @brief inline() returns the image if it is small enough to travel in
+     * the PREPARE itself
+     * @return returns byte[] image, or null if it has to be streamed
+     */
+    public byte[] inline() {
+        if (size > CHUNK) {
+            return null;
+        }
+        byte[] data = new byte[size];
+        map.duplicate().position(0).get(data);
+        return data;
+    }
+
+    /**
+     * @brief toArray() copies the whole image onto the heap, for askUser()
+     * which takes nothing else
+     * @return returns byte[] image
+     */
+    public byte[] toArray() {
+        byte[] data = new byte[size];
+        map.duplicate().position(0).get(data);
+        return data;
+    }
+
+    /**
+     * @brief hash() computes the content address of the image without
+     * copying it onto the heap, the same as imageCache.hash() of its bytes
+     * @return returns hex String of the SHA-256 of the image
+     */
+    public String hash() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(map.duplicate().position(0));
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : md.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @brief delete() removes the spool file. The mapping stays readable
+     * until it is garbage collected.
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
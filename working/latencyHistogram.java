@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * latencyHistogram records durations in nanoseconds into log-linear buckets,
+ * in the style of HdrHistogram: every power of two is split into SUB equal
+ * buckets, so any value is reported within 1/SUB (about 6%) of what was
+ * recorded, from 1 ns up to Long.MAX_VALUE, in a fixed table of counters.
+ * record() only increments counters, so it neither allocates nor locks and
+ * can sit on the commit path.
+ */
+class latencyHistogram implements latencyHistogramMXBean {
+    //bits of precision within a power of two
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @brief record() adds one duration to the histogram
+     * @param nanos takes long, duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        total.increment();
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * @brief since() records the time elapsed since start
+     * @param start takes long, a System.nanoTime() reading
+     * @return returns long, the current System.nanoTime() so phases can be
+     * chained
+     */
+    public long since(long start) {
+        long now = System.nanoTime();
+        record(now - start);
+        return now;
+    }
+
+    //values below SUB get a bucket each, larger ones by their top SUB_BITS
+    //bits after the leading one
+    static int index(long value) {
+        if (value < SUB) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int)((value >>> shift) - SUB);
+    }
+
+    //largest value that falls into bucket index
+    static long highest(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lowest = ((long)(SUB + (index & (SUB - 1)))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @brief percentile() returns the value below which the given fraction
+     * of the recorded durations fall
+     * @param p takes double between 0 and 1
+     * @return returns long, nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public double getMeanMicros() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / (double)n / 1000;
+    }
+
+    public double getP50Micros() {
+        return percentile(0.5) / 1000.0;
+    }
+
+    public double getP90Micros() {
+        return percentile(0.9) / 1000.0;
+    }
+
+    public double getP99Micros() {
+        return percentile(0.99) / 1000.0;
+    }
+
+    public double getP999Micros() {
+        return percentile(0.999) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * @brief reset() clears the histogram. Durations recorded while it runs
+     * may be kept or dropped.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @brief summary() formats count, mean, percentiles and max on one line
+     * @return returns String, all times in microseconds
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+            getCount(), getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * latencyHistogramMXBean is the JMX view of a latencyHistogram; every time
+ * is in microseconds
+ */
+public interface latencyHistogramMXBean {
+    long getCount();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP90Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+    void reset();
+}
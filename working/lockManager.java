@@ -0,0 +1,128 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * lockManager keeps track of which collage holds a lock on each source of a
+ * usernode. Lookups are O(1) in a ConcurrentHashMap; acquiring the locks of a
+ * collage takes the striped mutexes covering its sources in a fixed order, so
+ * all of them are locked at once or none are.
+ */
+class lockManager {
+    private static final int STRIPES = 64;
+    //source -> id of the collage attempt that holds the lock on it
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<String, String>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public lockManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static int stripe(String source) {
+        return (source.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * @brief stripesFor() returns the sorted, de-duplicated stripes that
+     * cover sources, which is the order they must be taken in
+     * @param sources takes String[]
+     * @return returns int[] stripe indices in increasing order
+     */
+    private static int[] stripesFor(String[] sources) {
+        boolean[] used = new boolean[STRIPES];
+        int count = 0;
+        for (String source : sources) {
+            int s = stripe(source);
+            if (!used[s]) {
+                used[s] = true;
+                count++;
+            }
+        }
+        int[] order = new int[count];
+        int i = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            if (used[s]) {
+                order[i++] = s;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @brief tryLockAll() locks every source for txn, or none of them if any
+     * is already held by another collage. Re-locking sources txn already
+     * holds succeeds, so a retransmitted PREPARE is harmless.
+     * @param txn takes String indicating the collage taking the locks
+     * @param sources takes String[]
+     * @return returns true if all sources are now locked by txn
+     */
+    public boolean tryLockAll(String txn, String[] sources) {
+        int[] order = stripesFor(sources);
+        for (int s : order) {
+            stripes[s].lock();
+        }
+        try {
+            for (String source : sources) {
+                String owner = owners.get(source);
+                if (owner != null && !owner.equals(txn)) {
+                    return false;
+                }
+            }
+            for (String source : sources) {
+                owners.put(source, txn);
+            }
+            return true;
+        }
+        finally {
+            for (int i = order.length - 1; i >= 0; i--) {
+                stripes[order[i]].unlock();
+            }
+        }
+    }
+
+    /**
+     * @brief unlockAll() releases the sources held by txn. Sources held by a
+     * different collage are left alone, so a stale COMMIT or ABORT cannot
+     * release another collage's locks.
+     * @param txn takes String indicating the collage releasing the locks
+     * @param sources takes String[]
+     */
+    public void unlockAll(String txn, String[] sources) {
+        for (String source : sources) {
+            owners.remove(source, txn);
+        }
+    }
+
+    /**
+     * @brief isLocked() checks whether any of the sources is locked
+     * @param sources takes String[]
+     * @return returns true if at least one source is held by some collage
+     */
+    public boolean isLocked(String[] sources) {
+        for (String source : sources) {
+            if (owners.containsKey(source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @brief owner() returns the collage holding the lock on source
+     * @param source takes String
+     * @return returns String collage filename, or null if source is free
+     */
+    public String owner(String source) {
+        return owners.get(source);
+    }
+
+    /**
+     * @brief size() returns the number of locked sources
+     * @return returns int
+     */
+    public int size() {
+        return owners.size();
+    }
+}
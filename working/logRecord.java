@@ -0,0 +1,219 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * logRecord is one entry of the server write-ahead log. Each collage writes a
+ * BEGIN record before PREPARE, a DECISION record once votes are counted and an
+ * END record once every usernode acknowledged the decision. A collage whose
+ * sources all live on one usernode is begun with BEGIN_ONE_PHASE instead,
+ * which has the same payload but tells recovery that the usernode, not the
+ * server, decides it.
+ *
+ * Usernodes keep their participant log in the same format. A VOTE record
+ * is written when a node votes on a collage, and a DECISION record when it
+ * applies the server's decision; an END record follows once the decision
+ * has been acked. Both carry the address of the coordinator shard that
+ * sent the request, so recovery answers the right one; a record that
+ * names none belongs to "Server". A VOTE also
+ * lists the other usernodes of the collage, which an in-doubt node asks
+ * for the outcome after a crash. A REFUSAL record is written when a node
+ * refuses a collage to a peer before its PREPARE came; like the rest it
+ * stays until an END follows it.
+ *
+ * Every record carries the id the coordinator gave the attempt at the
+ * collage, see messageWrapper. Records of one attempt are matched by it,
+ * so a collage name used again starts afresh.
+ *
+ * On disk a record is [int length][int crc][byte type][payload], where the
+ * payload starts with the filename and the id, and the crc covers type and
+ * payload so that a torn write at the tail can be detected.
+ */
+class logRecord {
+    static final byte BEGIN = 1;
+    static final byte DECISION = 2;
+    static final byte END = 3;
+    static final byte BEGIN_ONE_PHASE = 4;
+    static final byte VOTE = 5;
+    static final byte REFUSAL = 6;
+    //length and crc fields in front of every record
+    static final int HEADER = 8;
+
+    byte type;
+    String filename;
+    //id of the attempt at the collage
+    String txn;
+    //BEGIN: unparsed list of usernodes and sources (user:source), and the
+    //staging file the collage was written to
+    String[] sources;
+    String stage;
+    //DECISION: commit or abort; VOTE: the usernode's vote
+    int decision;
+    //VOTE: opcode of the request voted on, PREPARE or ONE_PHASE
+    int phase;
+    //VOTE and usernode DECISION: address of the coordinator, or null
+    String coordinator;
+    //VOTE: every usernode of the collage, or null
+    String[] peers;
+
+    public logRecord(byte type, String filename, String txn) {
+        this.type = type;
+        this.filename = filename;
+        this.txn = txn;
+    }
+
+    public static logRecord begin(String filename, String txn, String[] sources, String stage) {
+        logRecord rec = new logRecord(BEGIN, filename, txn);
+        rec.sources = sources;
+        rec.stage = stage;
+        return rec;
+    }
+
+    public static logRecord beginOnePhase(String filename, String txn, String[] sources, String stage) {
+        logRecord rec = begin(filename, txn, sources, stage);
+        rec.type = BEGIN_ONE_PHASE;
+        return rec;
+    }
+
+    public static logRecord vote(String filename, String txn, String[] sources, int decision, int phase) {
+        return vote(filename, txn, sources, decision, phase, null);
+    }
+
+    public static logRecord vote(String filename, String txn, String[] sources, int decision, int phase, String coordinator) {
+        return vote(filename, txn, sources, decision, phase, coordinator, null);
+    }
+
+    public static logRecord vote(String filename, String txn, String[] sources, int decision, int phase, String coordinator, String[] peers) {
+        logRecord rec = new logRecord(VOTE, filename, txn);
+        rec.peers = peers;
+        rec.sources = sources;
+        rec.decision = decision;
+        rec.phase = phase;
+        rec.coordinator = coordinator;
+        return rec;
+    }
+
+    public static logRecord decision(String filename, String txn, int decision) {
+        return decision(filename, txn, decision, null);
+    }
+
+    public static logRecord decision(String filename, String txn, int decision, String coordinator) {
+        logRecord rec = new logRecord(DECISION, filename, txn);
+        rec.decision = decision;
+        rec.coordinator = coordinator;
+        return rec;
+    }
+
+    public static logRecord end(String filename, String txn) {
+        return new logRecord(END, filename, txn);
+    }
+
+    public static logRecord refusal(String filename, String txn) {
+        return new logRecord(REFUSAL, filename, txn);
+    }
+
+    /**
+     * @brief encode() turns the record into its on-disk form, header included
+     * @return returns byte[] ready to be appended to the log
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(type);
+        out.writeUTF(filename);
+        out.writeUTF(txn);
+        switch (type) {
+            case BEGIN:
+            case BEGIN_ONE_PHASE:
+                out.writeInt(sources.length);
+                for (String source : sources) {
+                    out.writeUTF(source);
+                }
+                out.writeUTF(stage);
+                break;
+            case DECISION:
+                out.writeInt(decision);
+                break;
+            case VOTE:
+                out.writeInt(sources.length);
+                for (String source : sources) {
+                    out.writeUTF(source);
+                }
+                out.writeInt(decision);
+                out.writeInt(phase);
+                break;
+        }
+        if ((coordinator != null || peers != null) && (type == VOTE || type == DECISION)) {
+            out.writeUTF(coordinator != null ? coordinator : "Server");
+        }
+        if (peers != null && type == VOTE) {
+            out.writeInt(peers.length);
+            for (String peer : peers) {
+                out.writeUTF(peer);
+            }
+        }
+        out.flush();
+        byte[] body = payload.toByteArray();
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(HEADER + body.length);
+        DataOutputStream frame = new DataOutputStream(framed);
+        frame.writeInt(body.length);
+        frame.writeInt(checksum(body));
+        frame.write(body);
+        frame.flush();
+        return framed.toByteArray();
+    }
+
+    /**
+     * @brief decode() parses the payload of a record whose header was already
+     * read and checked
+     * @param body takes byte[] holding type and payload
+     * @return returns the decoded logRecord
+     */
+    public static logRecord decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        logRecord rec = new logRecord(type, in.readUTF(), in.readUTF());
+        switch (type) {
+            case BEGIN:
+            case BEGIN_ONE_PHASE:
+                rec.sources = new String[in.readInt()];
+                for (int i = 0; i < rec.sources.length; i++) {
+                    rec.sources[i] = in.readUTF();
+                }
+                rec.stage = in.readUTF();
+                break;
+            case DECISION:
+                rec.decision = in.readInt();
+                break;
+            case VOTE:
+                rec.sources = new String[in.readInt()];
+                for (int i = 0; i < rec.sources.length; i++) {
+                    rec.sources[i] = in.readUTF();
+                }
+                rec.decision = in.readInt();
+                rec.phase = in.readInt();
+                break;
+        }
+        if (in.available() > 0 && (type == VOTE || type == DECISION)) {
+            rec.coordinator = in.readUTF();
+        }
+        if (in.available() > 0 && type == VOTE) {
+            rec.peers = new String[in.readInt()];
+            for (int i = 0; i < rec.peers.length; i++) {
+                rec.peers[i] = in.readUTF();
+            }
+        }
+        return rec;
+    }
+
+    /**
+     * @brief checksum() computes the crc stored in front of a record body
+     * @param body takes byte[] holding type and payload
+     * @return returns int crc
+     */
+    public static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * messageBatcher coalesces protocol messages headed to the same destination
+ * into one ProjectLib.Message. A message waits at most `window` milliseconds
+ * for company; a destination is flushed right away once its pending messages
+ * reach `maxBytes`. A batch of one is sent as a plain message, and a window of
+ * 0 turns batching off.
+ */
+class messageBatcher {
+    private final transport PL;
+    private final long window;
+    private final int maxBytes;
+    //encoded messages waiting per destination, and their total size
+    private final HashMap<String, ArrayList<byte[]>> pending = new HashMap<String, ArrayList<byte[]>>();
+    private final HashMap<String, Integer> pendingBytes = new HashMap<String, Integer>();
+    private final ScheduledExecutorService timer;
+    //number of ProjectLib messages and protocol messages sent
+    final AtomicLong messagesSent = new AtomicLong();
+    final AtomicLong recordsSent = new AtomicLong();
+
+    public messageBatcher(transport PL, long window, int maxBytes) {
+        this.PL = PL;
+        this.window = window;
+        this.maxBytes = maxBytes;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "batch-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @brief send() queues a message for dest, or sends it at once if
+     * batching is off or the destination's batch is full
+     * @param dest takes String destination address
+     * @param msgwrap takes messageWrapper to send
+     */
+    public void send(String dest, messageWrapper msgwrap) throws IOException {
+        byte[] rec = wireCodec.encode(msgwrap);
+        if (window <= 0) {
+            transmit(dest, Collections.singletonList(rec));
+            return;
+        }
+        ArrayList<byte[]> full = null;
+        synchronized (this) {
+            ArrayList<byte[]> batch = pending.get(dest);
+            if (batch == null) {
+                batch = new ArrayList<byte[]>();
+                pending.put(dest, batch);
+                pendingBytes.put(dest, 0);
+                timer.schedule(() -> flush(dest), window, TimeUnit.MILLISECONDS);
+            }
+            batch.add(rec);
+            int bytes = pendingBytes.merge(dest, rec.length, Integer::sum);
+            if (bytes >= maxBytes) {
+                full = take(dest);
+            }
+        }
+        if (full != null) {
+            transmit(dest, full);
+        }
+    }
+
+    /**
+     * @brief flush() sends whatever is pending for dest
+     * @param dest takes String destination address
+     */
+    public void flush(String dest) {
+        ArrayList<byte[]> batch;
+        synchronized (this) {
+            batch = take(dest);
+        }
+        if (batch == null) {
+            return;
+        }
+        try {
+            transmit(dest, batch);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ArrayList<byte[]> take(String dest) {
+        pendingBytes.remove(dest);
+        return pending.remove(dest);
+    }
+
+    private void transmit(String dest, List<byte[]> batch) throws IOException {
+        byte[] body = batch.size() == 1 ? batch.get(0) : wireCodec.encodeBatch(batch);
+        messagesSent.incrementAndGet();
+        recordsSent.addAndGet(batch.size());
+        PL.sendMessage(new ProjectLib.Message(dest, body));
+    }
+}
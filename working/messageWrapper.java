@@ -5,17 +5,34 @@ class messageWrapper implements Serializable {
     int opcode;
     String addr;
     String[] sources;
-    ProjectLib.Message msg;
+    //collage image, only set in PREPARE when the node may not have it yet
+    byte[] img;
+    //content address of the collage image, set in PREPARE and IMAGE
+    String hash;
+    //size of the whole collage image in PREPARE, FETCH and IMAGE, and where
+    //in it the chunk in img starts (see imageSpool)
+    int size;
+    int offset;
+    //every usernode of the collage, set in PREPARE so that a prepared node
+    //can ask the others for the outcome if the server goes quiet
+    String[] peers;
 	String filename;
-    public messageWrapper(int opcode, byte[] body, String addr, String[] sources, String filename) {
-        msg = new ProjectLib.Message(addr, body);
+    //id the coordinator gave this attempt at the collage, carried by every
+    //message about it; a collage name may be used again, its id never is
+    String txn;
+    public messageWrapper(int opcode, byte[] img, String addr, String[] sources, String filename) {
         this.opcode = opcode;
         this.addr = addr;
-        this.msg = msg;
+        this.img = img;
         this.sources = sources;
 		this.filename = filename;
     }
 
+    public messageWrapper(int opcode, byte[] img, String addr, String[] sources, String filename, String txn) {
+        this(opcode, img, addr, sources, filename);
+        this.txn = txn;
+    }
+
 	//dont need
     public static byte[] serialize(Object obj) throws IOException
 	{
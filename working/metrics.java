@@ -0,0 +1,169 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * metrics holds the phase latency histograms and the per-node event counters
+ * of a server or usernode. Histograms are created up front and kept in
+ * static fields by their owner; counters such as retransmits are kept per
+ * peer and created on first use. register() publishes every histogram as a
+ * latencyHistogramMXBean and the counters as a metricsMXBean under
+ * collage:type=<scope>, and startDump() writes a text snapshot of all of
+ * them to a file every few seconds.
+ */
+class metrics implements metricsMXBean {
+    private final String scope;
+    private final LinkedHashMap<String, latencyHistogram> histograms = new LinkedHashMap<String, latencyHistogram>();
+    //counter name to peer to count
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> counters = new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
+    private ScheduledExecutorService dumper;
+
+    public metrics(String scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @brief histogram() returns the histogram of a phase, creating it on
+     * first use. Owners call it once and keep the result.
+     * @param phase takes String name of the phase
+     * @return returns latencyHistogram
+     */
+    public synchronized latencyHistogram histogram(String phase) {
+        return histograms.computeIfAbsent(phase, p -> new latencyHistogram());
+    }
+
+    /**
+     * @brief count() adds one to a counter of a peer
+     * @param name takes String name of the counter, e.g. retransmits
+     * @param peer takes String address of the node the event concerns
+     */
+    public void count(String name, String peer) {
+        counters.computeIfAbsent(name, n -> new ConcurrentHashMap<String, LongAdder>())
+            .computeIfAbsent(peer, p -> new LongAdder()).increment();
+    }
+
+    /**
+     * @brief get() returns the value of a counter of a peer
+     * @param name takes String name of the counter
+     * @param peer takes String address of the node
+     * @return returns long
+     */
+    public long get(String name, String peer) {
+        ConcurrentHashMap<String, LongAdder> byPeer = counters.get(name);
+        LongAdder n = byPeer == null ? null : byPeer.get(peer);
+        return n == null ? 0 : n.sum();
+    }
+
+    public Map<String, Map<String, Long>> getCounters() {
+        TreeMap<String, Map<String, Long>> all = new TreeMap<String, Map<String, Long>>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> e : counters.entrySet()) {
+            TreeMap<String, Long> byPeer = new TreeMap<String, Long>();
+            for (Map.Entry<String, LongAdder> p : e.getValue().entrySet()) {
+                byPeer.put(p.getKey(), p.getValue().sum());
+            }
+            all.put(e.getKey(), byPeer);
+        }
+        return all;
+    }
+
+    public synchronized Map<String, String> getPhases() {
+        LinkedHashMap<String, String> phases = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, latencyHistogram> e : histograms.entrySet()) {
+            phases.put(e.getKey(), e.getValue().summary());
+        }
+        return phases;
+    }
+
+    public synchronized void reset() {
+        for (latencyHistogram h : histograms.values()) {
+            h.reset();
+        }
+        counters.clear();
+    }
+
+    /**
+     * @brief register() publishes the histograms and counters on the
+     * platform MBean server, replacing any registered under the same names
+     * @param name takes String, extra key properties such as node=1, or null
+     */
+    public synchronized void register(String name) {
+        String prefix = "collage:type=" + scope + (name != null ? "," + name : "");
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(prefix + ",name=counters");
+            if (mbs.isRegistered(on)) {
+                mbs.unregisterMBean(on);
+            }
+            mbs.registerMBean(this, on);
+            for (Map.Entry<String, latencyHistogram> e : histograms.entrySet()) {
+                on = new ObjectName(prefix + ",phase=" + e.getKey());
+                if (mbs.isRegistered(on)) {
+                    mbs.unregisterMBean(on);
+                }
+                mbs.registerMBean(e.getValue(), on);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief startDump() writes snapshot() to path every periodMs, replacing
+     * the previous one with an atomic rename
+     * @param path takes String, name of the file
+     * @param periodMs takes long, 0 to not dump
+     */
+    public synchronized void startDump(String path, long periodMs) {
+        if (periodMs <= 0 || dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(path), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief dump() writes snapshot() to path
+     * @param path takes String, name of the file
+     */
+    public void dump(String path) {
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            Files.write(tmp, snapshot().getBytes());
+            Files.move(tmp, Paths.get(path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief snapshot() formats every histogram and counter, one per line
+     * @return returns String
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ").append(scope).append(" at ").append(new Date()).append(", times in us\n");
+        for (Map.Entry<String, String> e : getPhases().entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Map<String, Long>> e : getCounters().entrySet()) {
+            for (Map.Entry<String, Long> p : e.getValue().entrySet()) {
+                sb.append(e.getKey()).append(' ').append(p.getKey()).append(' ').append(p.getValue()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
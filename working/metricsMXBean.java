@@ -0,0 +1,13 @@
+import java.util.Map;
+
+/**
+ * metricsMXBean is the JMX view of the counters of a metrics and a summary
+ * of its phase histograms
+ */
+public interface metricsMXBean {
+    //counter name to node address to count
+    Map<String, Map<String, Long>> getCounters();
+    //phase name to its latencyHistogram summary
+    Map<String, String> getPhases();
+    void reset();
+}
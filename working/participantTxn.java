@@ -0,0 +1,86 @@
+import java.util.concurrent.Future;
+
+/**
+ * participantTxn is the usernode's view of a collage between its PREPARE and
+ * the server's decision. The PREPARE is handled on a worker thread while
+ * decisions are handled on the delivery thread, so the decided flag (guarded
+ * by the object's monitor) makes sure a worker never takes locks for a
+ * collage whose decision has already been processed.
+ */
+class participantTxn {
+    String filename;
+    //id the coordinator gave this attempt at the collage, see messageWrapper
+    String id;
+    messageWrapper prepare;
+    //address of the coordinator shard that sent the request, where the vote
+    //and any inquiries go
+    String coordinator;
+    //set once the decision for this collage has been handled
+    boolean decided = false;
+    //set while the PREPARE is parked until the server sends the image
+    boolean waitingForImage = false;
+    //the image being fetched into a spool file, see imageSpool
+    imageSpool spool;
+    //System.nanoTime() the sources were locked at, and the time in
+    //milliseconds the commit vote was logged at, 0 until then
+    long lockedAt = 0;
+    long votedAt = 0;
+    //worker running the PREPARE, including the user prompt
+    Future<?> prompt;
+    //worker thread asking the user, null when nobody is; a PREPARE resumed
+    //after an image fetch asks from another worker than the one in prompt
+    Thread asking;
+
+    public participantTxn(messageWrapper prepare, String coordinator) {
+        this.filename = prepare.filename;
+        this.id = prepare.txn;
+        this.prepare = prepare;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * @brief decide() marks the collage as decided, and drops an image that
+     * was still being fetched
+     */
+    public synchronized void decide() {
+        decided = true;
+        if (spool != null && !spool.complete()) {
+            spool.delete();
+        }
+    }
+
+    /**
+     * @brief cancelPrompt() interrupts the worker if it is still asking the
+     * user, so a decided collage does not keep it waiting for an answer
+     * nobody needs. Whatever the user answers afterwards is discarded.
+     */
+    public synchronized void cancelPrompt() {
+        if (asking != null) {
+            asking.interrupt();
+        }
+    }
+
+    /**
+     * @brief promptDone() ends the prompt and clears an interrupt that
+     * cancelPrompt() sent too late to cut it short, so it does not hit the
+     * log or the next collage the worker runs
+     */
+    public synchronized void promptDone() {
+        asking = null;
+        Thread.interrupted();
+    }
+
+    /**
+     * @brief resumeWithImage() hands the fetched image to a parked PREPARE
+     * @param img takes byte[] collage image, or null if it is in a spool
+     * @return returns true if the PREPARE was parked and should be resumed
+     */
+    public synchronized boolean resumeWithImage(byte[] img) {
+        if (!waitingForImage || decided) {
+            return false;
+        }
+        waitingForImage = false;
+        prepare.img = img;
+        return true;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * projectLibTransport is the transport of a node started from main(), which
+ * hands every call to the real ProjectLib
+ */
+class projectLibTransport implements transport {
+    private final ProjectLib PL;
+
+    public projectLibTransport(ProjectLib PL) {
+        this.PL = PL;
+    }
+
+    public void sendMessage(ProjectLib.Message msg) {
+        PL.sendMessage(msg);
+    }
+
+    public ProjectLib.Message getMessage() {
+        return PL.getMessage();
+    }
+
+    public void fsync() {
+        PL.fsync();
+    }
+
+    public boolean askUser(byte[] img, String[] sources) {
+        return PL.askUser(img, sources);
+    }
+}
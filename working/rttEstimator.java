@@ -0,0 +1,70 @@
+/**
+ * rttEstimator keeps a smoothed round trip time and its variance for one
+ * usernode, in the style of TCP (RFC 6298), and derives a timeout from them.
+ * Until the first sample arrives the timeout is the initial value.
+ */
+class rttEstimator {
+    private final long initial;
+    private final long min;
+    private final long max;
+    //smoothed round trip time and mean deviation, in milliseconds
+    private double srtt = -1;
+    private double rttvar = 0;
+
+    public rttEstimator(long initial, long min, long max) {
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @brief sample() folds a measured round trip time into the estimate.
+     * Only round trips of messages that were sent once should be sampled.
+     * @param rtt takes long, measured round trip time in milliseconds
+     */
+    public synchronized void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        }
+        else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+    }
+
+    /**
+     * @brief rto() returns the current timeout, srtt + 4 * rttvar clamped to
+     * [min, max]
+     * @return returns long timeout in milliseconds
+     */
+    public synchronized long rto() {
+        if (srtt < 0) {
+            return initial;
+        }
+        long rto = (long)Math.ceil(srtt + 4 * rttvar);
+        return Math.max(min, Math.min(max, rto));
+    }
+
+    /**
+     * @brief sampled() tells whether any round trip was measured yet
+     * @return returns boolean
+     */
+    public synchronized boolean sampled() {
+        return srtt >= 0;
+    }
+
+    /**
+     * @brief backoff() returns the timeout for the given attempt, doubling the
+     * current timeout for every retransmission and capping it at max
+     * @param attempt takes int, 1 for the first send
+     * @return returns long timeout in milliseconds
+     */
+    public long backoff(int attempt) {
+        long rto = rto();
+        for (int i = 1; i < attempt && rto < max; i++) {
+            rto *= 2;
+        }
+        return Math.min(max, rto);
+    }
+}
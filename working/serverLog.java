@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * serverLog is the append-only write-ahead log of the server. Records from all
+ * concurrent startCommit() calls are appended through a single FileChannel and
+ * made durable together: the first caller to find no flush in progress
+ * becomes the leader, writes every pending record and calls fsync() once for
+ * the whole batch, while the other callers wait for their record to be covered.
+ * Usernodes keep their participant log in userState.log the same way.
+ *
+ * The log is compacted as it grows. The flush leader keeps an index of the
+ * records of every collage that has no END record yet, and once the file
+ * passes checkpointBytes it writes just those records to a checkpoint file
+ * and renames it over the log. Recovery therefore reads the unfinished
+ * collages plus at most checkpointBytes of history, however long the log
+ * has been running. The threshold counts from the size of the last
+ * checkpoint, so a large set of unfinished collages does not make every
+ * flush compact.
+ */
+class serverLog {
+    private FileChannel channel;
+    private final transport PL;
+    private final Path path;
+    //bytes the log may grow by after a checkpoint before it is compacted
+    private final long checkpointBytes;
+    //size of the log right after the last checkpoint
+    private long compactedSize = 0;
+    //records appended but not yet written, in append order, and the records
+    //they encode
+    private ArrayList<byte[]> pending = new ArrayList<byte[]>();
+    private ArrayList<logRecord> pendingRecs = new ArrayList<logRecord>();
+    //encoded records of every collage without an END record, in log order;
+    //only touched by the flush leader
+    private final LinkedHashMap<String, ArrayList<byte[]>> live = new LinkedHashMap<String, ArrayList<byte[]>>();
+    //sequence number of the last appended and the last durable record
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private boolean flushing = false;
+    //records found in the log when it was opened, used by recovery
+    private final ArrayList<logRecord> recovered;
+    //statistics on how well records are batched
+    long fsyncCount = 0;
+    long bytesWritten = 0;
+    long recordCount = 0;
+    long checkpointCount = 0;
+    //duration of each fsync, if the owner keeps one
+    latencyHistogram fsyncTime;
+
+    /**
+     * @brief opens the log at path, reading back every complete record and
+     * truncating a torn record left at the tail by a crash
+     * @param path takes String, name of the log file
+     * @param PL takes transport used to fsync
+     */
+    public serverLog(String path, transport PL) throws IOException {
+        this(path, PL, Long.getLong("log.checkpoint.bytes", 1L << 20));
+    }
+
+    /**
+     * @brief opens the log at path like serverLog(path, PL), compacting it
+     * whenever it grew by checkpointBytes since the last checkpoint
+     * @param path takes String, name of the log file
+     * @param PL takes transport used to fsync
+     * @param checkpointBytes takes long, size that triggers a checkpoint
+     */
+    public serverLog(String path, transport PL, long checkpointBytes) throws IOException {
+        this.PL = PL;
+        this.path = Paths.get(path);
+        this.checkpointBytes = checkpointBytes;
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.recovered = new ArrayList<logRecord>();
+        long valid = readAll(recovered);
+        channel.truncate(valid);
+        channel.position(valid);
+        for (logRecord rec : recovered) {
+            index(rec, rec.encode());
+        }
+    }
+
+    /**
+     * @brief getRecovered() returns the records that were in the log on open
+     * @return returns ArrayList of logRecord in log order
+     */
+    public ArrayList<logRecord> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * @brief clearRecovered() drops the records read on open once recovery
+     * no longer needs them
+     */
+    public void clearRecovered() {
+        recovered.clear();
+        recovered.trimToSize();
+    }
+
+    /**
+     * @brief liveCount() returns the number of collages without an END record
+     * @return returns int
+     */
+    public synchronized int liveCount() {
+        return live.size();
+    }
+
+    /**
+     * @brief readAll() reads records from the start of the log until the end
+     * of the file or the first incomplete or corrupt record
+     * @param out takes ArrayList that the records are added to
+     * @return returns long, offset just past the last valid record
+     */
+    private long readAll(ArrayList<logRecord> out) throws IOException {
+        long pos = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(logRecord.HEADER);
+        while (pos + logRecord.HEADER <= size) {
+            header.clear();
+            channel.read(header, pos);
+            header.flip();
+            int len = header.getInt();
+            int crc = header.getInt();
+            if (len <= 0 || pos + logRecord.HEADER + len > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(len);
+            while (body.hasRemaining()) {
+                channel.read(body, pos + logRecord.HEADER + body.position());
+            }
+            if (logRecord.checksum(body.array()) != crc) {
+                break;
+            }
+            out.add(logRecord.decode(body.array()));
+            pos += logRecord.HEADER + len;
+        }
+        return pos;
+    }
+
+    /**
+     * @brief append() adds a record to the log and returns once it is durable,
+     * sharing the fsync with any records appended concurrently
+     * @param rec takes logRecord to append
+     */
+    public void append(logRecord rec) throws IOException {
+        byte[] bytes = rec.encode();
+        long mySeq;
+        synchronized (this) {
+            pending.add(bytes);
+            pendingRecs.add(rec);
+            mySeq = ++appendedSeq;
+        }
+        flushUntil(mySeq);
+    }
+
+    /**
+     * @brief appendLazy() adds a record to the log without waiting for it to
+     * be durable. It is written by the next flush, so it only becomes durable
+     * together with a later append() and may be lost in a crash before that.
+     * @param rec takes logRecord to append
+     */
+    public void appendLazy(logRecord rec) throws IOException {
+        byte[] bytes = rec.encode();
+        synchronized (this) {
+            pending.add(bytes);
+            pendingRecs.add(rec);
+            ++appendedSeq;
+        }
+    }
+
+    /**
+     * @brief sync() returns once every record appended so far is durable,
+     * including those added with appendLazy()
+     */
+    public void sync() throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = appendedSeq;
+        }
+        flushUntil(seq);
+    }
+
+    /**
+     * @brief flushUntil() blocks until every record up to seq is durable. If no
+     * flush is running, the caller becomes the leader and flushes the batch.
+     * @param seq takes long, sequence number that must be durable
+     */
+    private void flushUntil(long seq) throws IOException {
+        ArrayList<byte[]> batch;
+        ArrayList<logRecord> batchRecs;
+        long target;
+        synchronized (this) {
+            while (durableSeq < seq && flushing) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (durableSeq >= seq) {
+                return;
+            }
+            flushing = true;
+            batch = pending;
+            batchRecs = pendingRecs;
+            pending = new ArrayList<byte[]>();
+            pendingRecs = new ArrayList<logRecord>();
+            target = appendedSeq;
+        }
+        boolean done = false;
+        long start = channel.position();
+        try {
+            long bytes = 0;
+            ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+            for (int i = 0; i < bufs.length; i++) {
+                bufs[i] = ByteBuffer.wrap(batch.get(i));
+                bytes += bufs[i].remaining();
+            }
+            long written = 0;
+            while (written < bytes) {
+                written += channel.write(bufs);
+            }
+            long t = System.nanoTime();
+            PL.fsync();
+            if (fsyncTime != null) {
+                fsyncTime.since(t);
+            }
+            synchronized (this) {
+                fsyncCount++;
+                bytesWritten += bytes;
+                recordCount += bufs.length;
+                for (int i = 0; i < bufs.length; i++) {
+                    index(batchRecs.get(i), batch.get(i));
+                }
+            }
+            done = true;
+            if (channel.position() - compactedSize > checkpointBytes) {
+                checkpoint();
+            }
+        }
+        finally {
+            synchronized (this) {
+                if (done) {
+                    durableSeq = target;
+                }
+                else {
+                    //drop anything partially written and put the batch back
+                    //so that a later leader retries it
+                    try {
+                        channel.truncate(start);
+                        channel.position(start);
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    batch.addAll(pending);
+                    pending = batch;
+                    batchRecs.addAll(pendingRecs);
+                    pendingRecs = batchRecs;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @brief index() tracks a durable record in the table of unfinished
+     * collages, by the id of the attempt; an END record retires it
+     * @param rec takes logRecord
+     * @param bytes takes byte[], its encoded form
+     */
+    private void index(logRecord rec, byte[] bytes) {
+        if (rec.type == logRecord.END) {
+            live.remove(rec.txn);
+            return;
+        }
+        live.computeIfAbsent(rec.txn, t -> new ArrayList<byte[]>()).add(bytes);
+    }
+
+    /**
+     * @brief checkpoint() rewrites the log as the records of the unfinished
+     * collages only. They are written to a checkpoint file that is made
+     * durable and then renamed over the log, so a crash leaves either the old
+     * log or the compacted one. Called by the flush leader, so no other
+     * thread writes to the log meanwhile. A failed checkpoint keeps the old
+     * log and is retried after the next flush.
+     */
+    private void checkpoint() {
+        Path ckpt = path.resolveSibling(path.getFileName() + ".ckpt");
+        ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+        synchronized (this) {
+            for (ArrayList<byte[]> recs : live.values()) {
+                for (byte[] rec : recs) {
+                    bufs.add(ByteBuffer.wrap(rec));
+                }
+            }
+        }
+        try {
+            FileChannel next = FileChannel.open(ckpt, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                for (ByteBuffer buf : bufs) {
+                    while (buf.hasRemaining()) {
+                        next.write(buf);
+                    }
+                }
+                next.force(true);
+                PL.fsync();
+                Files.move(ckpt, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (IOException e) {
+                next.close();
+                throw e;
+            }
+            FileChannel old = channel;
+            channel = next;
+            old.close();
+            compactedSize = next.position();
+            synchronized (this) {
+                fsyncCount++;
+                checkpointCount++;
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @brief close() closes the underlying channel
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
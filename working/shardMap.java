@@ -0,0 +1,67 @@
+/**
+ * shardMap assigns every collage to one of a set of coordinator shards by
+ * rendezvous hashing: the owner of a collage is the shard whose address
+ * hashed together with the collage name scores highest. Changing the number
+ * of shards only moves the collages whose top score changes, about 1/N of
+ * them when a shard is added.
+ *
+ * Shard 0 is "Server", the address ProjectLib delivers startCommit() to; the
+ * others are "Server-1", "Server-2" and so on.
+ */
+class shardMap {
+    final String[] shards;
+
+    public shardMap(String[] shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @brief of() returns the map of the first count shard addresses
+     * @param count takes int, at least 1
+     * @return returns shardMap
+     */
+    public static shardMap of(int count) {
+        String[] shards = new String[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = i == 0 ? "Server" : "Server-" + i;
+        }
+        return new shardMap(shards);
+    }
+
+    /**
+     * @brief owner() returns the address of the shard that coordinates a
+     * collage
+     * @param filename takes String name of the collage
+     * @return returns String shard address
+     */
+    public String owner(String filename) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        int h = filename.hashCode();
+        String best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (String shard : shards) {
+            long score = mix(h * 0x9E3779B97F4A7C15L + shard.hashCode());
+            if (best == null || score > bestScore) {
+                best = shard;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    //spreads the bits of x, the 64 bit finalizer of MurmurHash3
+    static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    public int size() {
+        return shards.length;
+    }
+}
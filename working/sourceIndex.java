@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * sourceIndex keeps the names of the files in a usernode's directory in
+ * memory, so that checking the sources of a PREPARE does not touch the
+ * filesystem. It is built by listing the directory once and kept current
+ * by a WatchService and by the node's own deletes; if the watch loses
+ * events the directory is listed again. The watch events are applied when
+ * the index is asked, not by a thread of its own.
+ *
+ * Only deletes are watched. A name the index does not have is checked on
+ * disk and added if the file is there, so a new file costs one lookup on
+ * disk, and the node is not woken for every file created in a busy
+ * directory. Every delete in the directory still wakes the JDK's watch
+ * thread; a node whose directory nothing else deletes from can do without
+ * the watch, since its own deletes keep the index current anyway. A source the node is deleting counts as gone
+ * right away, so a later collage cannot take it while the delete is still
+ * queued.
+ *
+ * Deletes of committed sources are queued with deleteLater() and done by a
+ * background thread in batches. flush() waits for the ones queued so far,
+ * and the node calls it before the log sync that precedes its acks, so the
+ * same fsync covers the deletes, as when they were done inline.
+ */
+class sourceIndex {
+    private final Path dir;
+    private final WatchService watcher;
+    private final Set<String> present = ConcurrentHashMap.newKeySet();
+    //sources queued for deletion and not deleted yet
+    private final Set<String> deleting = ConcurrentHashMap.newKeySet();
+    private final ArrayList<String> queue = new ArrayList<String>();
+    //deletes queued and done so far, in sources
+    private long queued = 0;
+    private long done = 0;
+
+    private sourceIndex(Path dir, WatchService watcher) {
+        this.dir = dir;
+        this.watcher = watcher;
+    }
+
+    /**
+     * @brief open() indexes dir, starts watching it and starts the delete
+     * thread
+     * @param dir takes Path of the directory the sources are in
+     * @param watch takes boolean, false to rely on the node's own deletes
+     * @return returns the sourceIndex
+     */
+    public static sourceIndex open(Path dir, boolean watch) throws IOException {
+        WatchService watcher = null;
+        if (watch) {
+            //registered before the listing, so that no delete falls in between
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        sourceIndex index = new sourceIndex(dir, watcher);
+        index.scan();
+        Thread t = new Thread(index::deleteBatches, "source-deleter");
+        t.setDaemon(true);
+        t.start();
+        return index;
+    }
+
+    //lists the directory into the index
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            HashSet<String> names = new HashSet<String>();
+            for (Path p : stream) {
+                names.add(p.getFileName().toString());
+            }
+            present.retainAll(names);
+            present.addAll(names);
+        }
+    }
+
+    //applies the watch events reported so far
+    private synchronized void update() {
+        if (watcher == null) {
+            return;
+        }
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    try {
+                        scan();
+                    }
+                    catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+                present.remove(((Path)event.context()).getFileName().toString());
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * @brief exists() checks whether all source files are there, from the
+     * index if it has the name and on disk otherwise
+     * @param sources takes String[] file names
+     * @return returns boolean indicating whether every file exists
+     */
+    public boolean exists(String[] sources) {
+        update();
+        for (String source : sources) {
+            if (deleting.contains(source) || !(present.contains(source) || probe(source))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //checks a name the index does not have on disk; a delete reported
+    //meanwhile is applied after it is added
+    private synchronized boolean probe(String source) {
+        if (!new File(source).exists()) {
+            return false;
+        }
+        present.add(source);
+        return true;
+    }
+
+    /**
+     * @brief delete() deletes a source file now
+     * @param source takes String file name
+     */
+    public void delete(String source) {
+        File file = new File(source);
+        if (file.exists()) {
+            file.delete();
+        }
+        present.remove(source);
+    }
+
+    /**
+     * @brief deleteLater() queues sources for deletion; they count as gone
+     * from now on
+     * @param sources takes String[] file names
+     */
+    public void deleteLater(String[] sources) {
+        synchronized (queue) {
+            for (String source : sources) {
+                deleting.add(source);
+                queue.add(source);
+            }
+            queued += sources.length;
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * @brief flush() returns once every source queued so far is deleted. The
+     * caller deletes what the background thread has not taken yet itself,
+     * rather than waiting for it to be scheduled.
+     */
+    public void flush() {
+        long target;
+        synchronized (queue) {
+            target = queued;
+        }
+        deleteBatch();
+        synchronized (queue) {
+            while (done < target) {
+                try {
+                    queue.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //deletes whatever is queued, one batch at a time
+    private void deleteBatches() {
+        while (true) {
+            synchronized (queue) {
+                while (queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            deleteBatch();
+        }
+    }
+
+    //takes everything queued and deletes it
+    private void deleteBatch() {
+        String[] batch;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            batch = queue.toArray(new String[0]);
+            queue.clear();
+        }
+        for (String source : batch) {
+            delete(source);
+            deleting.remove(source);
+        }
+        synchronized (queue) {
+            done += batch.length;
+            queue.notifyAll();
+        }
+    }
+}
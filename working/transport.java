@@ -0,0 +1,34 @@
+/**
+ * transport is what the server and the usernodes need from ProjectLib:
+ * sending and receiving messages, asking the user about a collage and making
+ * writes durable. Nodes started from main() use projectLibTransport around
+ * the real ProjectLib; the tools use an in-process loopback so that many
+ * nodes can run in one JVM for load and crash testing.
+ */
+public interface transport {
+    /**
+     * @brief sendMessage() sends msg to the node named by msg.addr
+     * @param msg takes ProjectLib.Message
+     */
+    void sendMessage(ProjectLib.Message msg);
+
+    /**
+     * @brief getMessage() blocks for the next message not taken by a
+     * ProjectLib.MessageHandling callback
+     * @return returns ProjectLib.Message with addr set to the sender
+     */
+    ProjectLib.Message getMessage();
+
+    /**
+     * @brief fsync() makes every write so far durable
+     */
+    void fsync();
+
+    /**
+     * @brief askUser() asks the user whether sources may be used for a collage
+     * @param img takes byte[] collage image
+     * @param sources takes String[] of the user's sources
+     * @return returns true if the user agreed
+     */
+    boolean askUser(byte[] img, String[] sources);
+}
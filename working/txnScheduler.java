@@ -0,0 +1,140 @@
+import java.util.*;
+
+/**
+ * txnScheduler bounds the collages a coordinator runs at once. At most
+ * `active` collages are between admission and their last ack, and each
+ * usernode takes part in at most `perNode` of them, so a burst of
+ * startCommit() calls does not flood one node with PREPAREs or grow the
+ * in-flight tables without limit. Collages beyond that wait in a queue of
+ * at most `depth`; a collage arriving to a full queue is rejected at once,
+ * and one that waited `maxWait` milliseconds without being scheduled is
+ * shed, so that under overload a caller hears back within a bounded time
+ * instead of every collage slowing down together.
+ *
+ * Waiting collages are scheduled in arrival order, except that one whose
+ * nodes are all at their limit is passed over by later ones that can run;
+ * it keeps its place and goes as soon as its nodes free up. An active
+ * limit of 0 turns the scheduler off.
+ */
+class txnScheduler {
+    private final int active;
+    private final int perNode;
+    private final int depth;
+    private final long maxWait;
+    private int running = 0;
+    //collages each usernode is taking part in
+    private final HashMap<String, Integer> load = new HashMap<String, Integer>();
+    private final ArrayDeque<waiter> queue = new ArrayDeque<waiter>();
+    //statistics
+    long scheduled = 0;
+    long queued = 0;
+    long rejected = 0;
+    long shed = 0;
+
+    private static class waiter {
+        final Collection<String> nodes;
+        boolean granted = false;
+
+        waiter(Collection<String> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    public txnScheduler(int active, int perNode, int depth, long maxWait) {
+        this.active = active;
+        this.perNode = perNode;
+        this.depth = depth;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @brief acquire() waits until the collage may run
+     * @param nodes takes Collection of the usernodes taking part
+     * @return returns true if it may run, false if the queue was full or it
+     * waited too long; release() is only called after true
+     */
+    public synchronized boolean acquire(Collection<String> nodes) {
+        if (active <= 0) {
+            return true;
+        }
+        //every waiting collage is blocked on a limit, so one that fits now
+        //overtakes none that could run
+        if (fits(nodes)) {
+            take(nodes);
+            return true;
+        }
+        if (queue.size() >= depth) {
+            rejected++;
+            return false;
+        }
+        waiter w = new waiter(nodes);
+        queue.add(w);
+        queued++;
+        long deadline = System.currentTimeMillis() + maxWait;
+        try {
+            long remaining;
+            while (!w.granted && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (w.granted) {
+            return true;
+        }
+        queue.remove(w);
+        shed++;
+        return false;
+    }
+
+    /**
+     * @brief release() ends a collage and schedules the waiting ones that
+     * now fit
+     * @param nodes takes Collection of the usernodes that took part
+     */
+    public synchronized void release(Collection<String> nodes) {
+        if (active <= 0) {
+            return;
+        }
+        running--;
+        for (String node : nodes) {
+            if (load.merge(node, -1, Integer::sum) <= 0) {
+                load.remove(node);
+            }
+        }
+        boolean granted = false;
+        for (Iterator<waiter> it = queue.iterator(); it.hasNext() && running < active; ) {
+            waiter w = it.next();
+            if (fits(w.nodes)) {
+                it.remove();
+                take(w.nodes);
+                w.granted = true;
+                granted = true;
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private boolean fits(Collection<String> nodes) {
+        if (running >= active) {
+            return false;
+        }
+        for (String node : nodes) {
+            if (load.getOrDefault(node, 0) >= perNode) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void take(Collection<String> nodes) {
+        running++;
+        scheduled++;
+        for (String node : nodes) {
+            load.merge(node, 1, Integer::sum);
+        }
+    }
+}
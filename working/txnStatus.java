@@ -0,0 +1,131 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * txnStatus tracks the votes and acknowledgements of a single collage while
+ * it is in flight. deliverMessage() records responses here and startCommit()
+ * blocks on the latches instead of polling.
+ */
+class txnStatus {
+    String filename;
+    //id of this attempt at the collage, which every message about it carries
+    String id;
+    //unparsed list of usernodes and sources (user:source)
+    String[] sources;
+    int numNodes;
+    //counted down once per commit vote, or all at once on the first abort
+    CountDownLatch votes;
+    //counted down once per node that acknowledged the decision
+    CountDownLatch acks;
+    //nodes that already voted or acked, so duplicates are not double-counted
+    Set<String> voted = ConcurrentHashMap.newKeySet();
+    Set<String> acked = ConcurrentHashMap.newKeySet();
+    //nodes that voted to abort, they already know the outcome
+    Set<String> abortVoted = ConcurrentHashMap.newKeySet();
+    volatile boolean aborted = false;
+    //when each node was sent its PREPARE and its latest decision, and how many
+    //times the decision was sent, for rtt sampling and retransmission
+    ConcurrentHashMap<String, Long> prepareSent = new ConcurrentHashMap<String, Long>();
+    ConcurrentHashMap<String, Long> decisionSent = new ConcurrentHashMap<String, Long>();
+    ConcurrentHashMap<String, Integer> decisionTries = new ConcurrentHashMap<String, Integer>();
+    //set when the collage's only usernode decides it in one round trip
+    boolean onePhase = false;
+    //collage image and its content address: the image itself if it is
+    //small enough to go inline in the PREPARE, or else the staged image,
+    //served in chunks to nodes that ask for it
+    byte[] img;
+    imageSpool image;
+    String hash;
+    //when a node last fetched a chunk, the vote wait is extended while an
+    //image is still streaming
+    volatile long lastFetch = 0;
+
+    public txnStatus(String id, String filename, String[] sources, int numNodes) {
+        this.id = id;
+        this.filename = filename;
+        this.sources = sources;
+        this.numNodes = numNodes;
+        this.votes = new CountDownLatch(numNodes);
+        this.acks = new CountDownLatch(numNodes);
+    }
+
+    /**
+     * @brief recordCommit() counts a commit vote from node
+     * @param node takes String indicating the usernode that voted
+     * @return returns true if this is the first vote from node
+     */
+    public boolean recordCommit(String node) {
+        if (voted.add(node)) {
+            votes.countDown();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @brief recordAbort() marks the collage as aborted and releases anyone
+     * waiting for votes
+     * @param node takes String indicating the usernode that voted
+     * @return returns true if this is the first vote from node
+     */
+    public boolean recordAbort(String node) {
+        boolean first = voted.add(node);
+        abortVoted.add(node);
+        aborted = true;
+        while (votes.getCount() > 0) {
+            votes.countDown();
+        }
+        return first;
+    }
+
+    /**
+     * @brief recordAck() counts an acknowledgement from node
+     * @param node takes String indicating the usernode that acknowledged
+     * @return returns true if this is the first ack from node
+     */
+    public boolean recordAck(String node) {
+        if (acked.add(node)) {
+            acks.countDown();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @brief awaitVotes() waits until every node voted to commit, some node
+     * voted to abort, or the timeout runs out
+     * @param timeout takes long, maximum wait in milliseconds
+     * @return returns true only if every node voted to commit in time
+     */
+    public boolean awaitVotes(long timeout) throws InterruptedException {
+        boolean done = votes.await(timeout, TimeUnit.MILLISECONDS);
+        return done && !aborted;
+    }
+
+    public int imageSize() {
+        return img != null ? img.length : image != null ? image.size : 0;
+    }
+
+    /**
+     * @brief streaming() tells whether an image is still being fetched, so
+     * the wait for votes should go on past its deadline
+     * @param window takes long milliseconds since the last fetch that count
+     * as still streaming
+     * @return returns true if a node fetched a chunk within window
+     */
+    public boolean streaming(long window) {
+        return !aborted && System.currentTimeMillis() - lastFetch < window;
+    }
+
+    /**
+     * @brief awaitAcks() waits until every node acknowledged the decision or
+     * the timeout runs out
+     * @param timeout takes long, maximum wait in milliseconds
+     * @return returns true if all acknowledgements arrived in time
+     */
+    public boolean awaitAcks(long timeout) throws InterruptedException {
+        return acks.await(timeout, TimeUnit.MILLISECONDS);
+    }
+}
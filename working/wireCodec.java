@@ -0,0 +1,221 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * wireCodec is the binary format messageWrappers are sent in between the
+ * server and the usernodes:
+ *
+ *   [byte opcode][str filename][str txn][str addr][str hash][i32 size][i32 offset]
+ *   [u16 count][str source]*[u16 count][str peer]*[i32 len][img]
+ *
+ * where str is a u16 byte length followed by UTF-8 bytes (0xFFFF for null)
+ * and len is -1 when there is no image. txn is the id of the attempt at
+ * the collage, see messageWrapper. size and offset place a chunk of a
+ * streamed image, see imageSpool. The encoder sizes the output first so
+ * the image is copied exactly once into the message body.
+ *
+ * Several encoded messages to the same destination can be packed into one
+ * envelope, [byte BATCH][u16 count]([i32 len][message])*, which decodeAll()
+ * unpacks.
+ */
+class wireCodec {
+    private static final int NULL_STR = 0xFFFF;
+    //opcode of an envelope, distinct from every protocol opcode
+    static final int BATCH = 6;
+
+    /**
+     * @brief encode() writes a messageWrapper into a new byte array
+     * @param msgwrap takes messageWrapper
+     * @return returns byte[] sized exactly to the encoded message
+     */
+    public static byte[] encode(messageWrapper msgwrap) throws IOException {
+        byte[] filename = utf8(msgwrap.filename);
+        byte[] txn = utf8(msgwrap.txn);
+        byte[] addr = utf8(msgwrap.addr);
+        byte[] hash = utf8(msgwrap.hash);
+        int count = msgwrap.sources == null ? 0 : msgwrap.sources.length;
+        if (count > NULL_STR) {
+            throw new IOException("too many sources: " + count);
+        }
+        byte[][] sources = new byte[count][];
+        int size = 1 + strSize(filename) + strSize(txn) + strSize(addr) + strSize(hash) + 4 + 4 + 2 + 2 + 4;
+        for (int i = 0; i < count; i++) {
+            sources[i] = utf8(msgwrap.sources[i]);
+            size += strSize(sources[i]);
+        }
+        int numPeers = msgwrap.peers == null ? 0 : msgwrap.peers.length;
+        if (numPeers > NULL_STR) {
+            throw new IOException("too many peers: " + numPeers);
+        }
+        byte[][] peers = new byte[numPeers][];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = utf8(msgwrap.peers[i]);
+            size += strSize(peers[i]);
+        }
+        if (msgwrap.img != null) {
+            size += msgwrap.img.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put((byte)msgwrap.opcode);
+        putStr(buf, filename);
+        putStr(buf, txn);
+        putStr(buf, addr);
+        putStr(buf, hash);
+        buf.putInt(msgwrap.size);
+        buf.putInt(msgwrap.offset);
+        buf.putShort((short)count);
+        for (byte[] source : sources) {
+            putStr(buf, source);
+        }
+        buf.putShort((short)peers.length);
+        for (byte[] peer : peers) {
+            putStr(buf, peer);
+        }
+        if (msgwrap.img == null) {
+            buf.putInt(-1);
+        }
+        else {
+            buf.putInt(msgwrap.img.length);
+            buf.put(msgwrap.img);
+        }
+        return buf.array();
+    }
+
+    /**
+     * @brief decode() reads a messageWrapper back from its encoded form
+     * @param input takes byte[] produced by encode()
+     * @return returns the decoded messageWrapper
+     */
+    public static messageWrapper decode(byte[] input) throws IOException {
+        try {
+            return decode(ByteBuffer.wrap(input));
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("truncated message", e);
+        }
+    }
+
+    private static messageWrapper decode(ByteBuffer buf) {
+        int opcode = buf.get();
+        String filename = getStr(buf);
+        String txn = getStr(buf);
+        String addr = getStr(buf);
+        String hash = getStr(buf);
+        int size = buf.getInt();
+        int offset = buf.getInt();
+        String[] sources = new String[buf.getShort() & 0xFFFF];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = getStr(buf);
+        }
+        String[] peers = null;
+        int numPeers = buf.getShort() & 0xFFFF;
+        if (numPeers > 0) {
+            peers = new String[numPeers];
+            for (int i = 0; i < numPeers; i++) {
+                peers[i] = getStr(buf);
+            }
+        }
+        int len = buf.getInt();
+        byte[] img = null;
+        if (len >= 0) {
+            img = new byte[len];
+            buf.get(img);
+        }
+        messageWrapper msgwrap = new messageWrapper(opcode, img, addr, sources, filename, txn);
+        msgwrap.hash = hash;
+        msgwrap.size = size;
+        msgwrap.offset = offset;
+        msgwrap.peers = peers;
+        return msgwrap;
+    }
+
+    /**
+     * @brief encodeBatch() packs already encoded messages into one envelope
+     * @param records takes List of byte[] produced by encode()
+     * @return returns byte[] envelope
+     */
+    public static byte[] encodeBatch(List<byte[]> records) throws IOException {
+        if (records.size() > NULL_STR) {
+            throw new IOException("too many messages in batch: " + records.size());
+        }
+        int size = 1 + 2;
+        for (byte[] rec : records) {
+            size += 4 + rec.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put((byte)BATCH);
+        buf.putShort((short)records.size());
+        for (byte[] rec : records) {
+            buf.putInt(rec.length);
+            buf.put(rec);
+        }
+        return buf.array();
+    }
+
+    /**
+     * @brief decodeAll() decodes a message body that is either a single
+     * encoded message or an envelope of several
+     * @param input takes byte[] message body
+     * @return returns List of the messageWrappers it contains, in send order
+     */
+    public static List<messageWrapper> decodeAll(byte[] input) throws IOException {
+        ArrayList<messageWrapper> out = new ArrayList<messageWrapper>();
+        if (input.length == 0 || input[0] != BATCH) {
+            out.add(decode(input));
+            return out;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(input);
+            buf.get();
+            int count = buf.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int len = buf.getInt();
+                ByteBuffer rec = buf.slice();
+                rec.limit(len);
+                out.add(decode(rec));
+                buf.position(buf.position() + len);
+            }
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("truncated batch", e);
+        }
+        return out;
+    }
+
+    private static byte[] utf8(String str) throws IOException {
+        if (str == null) {
+            return null;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STR) {
+            throw new IOException("string too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static int strSize(byte[] str) {
+        return 2 + (str == null ? 0 : str.length);
+    }
+
+    private static void putStr(ByteBuffer buf, byte[] str) {
+        if (str == null) {
+            buf.putShort((short)NULL_STR);
+            return;
+        }
+        buf.putShort((short)str.length);
+        buf.put(str);
+    }
+
+    private static String getStr(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        if (len == NULL_STR) {
+            return null;
+        }
+        String str = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return str;
+    }
+}